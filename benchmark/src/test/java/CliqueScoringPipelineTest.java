@@ -0,0 +1,130 @@
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.CliqueScoringPipeline;
+import ru.ifmo.docking.util.Pair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CliqueScoringPipelineTest {
+
+    @Test
+    public void testTransitionsAreSortedByScoreThenEntries() throws Exception {
+        Random random = new Random(41);
+        List<Pair<RealMatrix, Double>> items = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // few distinct scores and entries, so that ties of both are frequent
+            RealMatrix transition = MatrixUtils.createRealMatrix(new double[][]{
+                    {random.nextInt(3), random.nextInt(3)},
+                    {random.nextInt(3), random.nextInt(3)}
+            });
+            double score = i % 50 == 0 ? Double.POSITIVE_INFINITY : random.nextInt(10);
+            items.add(Pair.of(transition, score));
+        }
+
+        CliqueScoringPipeline<Pair<RealMatrix, Double>> pipeline = new CliqueScoringPipeline<>(item -> item, 3);
+        items.forEach(pipeline);
+        List<RealMatrix> transitions = pipeline.finish();
+
+        List<Pair<RealMatrix, Double>> expected = new ArrayList<>();
+        for (Pair<RealMatrix, Double> item : items) {
+            if (!Double.isInfinite(item.second)) {
+                expected.add(item);
+            }
+        }
+        expected.sort((o1, o2) -> {
+            int result = -Double.compare(o1.second, o2.second);
+            for (int k = 0; k < 4 && result == 0; k++) {
+                result = Double.compare(o1.first.getEntry(k / 2, k % 2), o2.first.getEntry(k / 2, k % 2));
+            }
+            return result;
+        });
+        Assert.assertEquals(expected.size(), transitions.size());
+        for (int i = 0; i < expected.size(); i++) {
+            RealMatrix actual = transitions.get(i);
+            for (int k = 0; k < 4; k++) {
+                Assert.assertEquals(expected.get(i).first.getEntry(k / 2, k % 2), actual.getEntry(k / 2, k % 2), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testScorerFailureIsRethrown() throws Exception {
+        IllegalStateException failure = new IllegalStateException("bad clique");
+        CliqueScoringPipeline<Integer> pipeline = new CliqueScoringPipeline<>(item -> {
+            if (item == 77) {
+                throw failure;
+            }
+            return Pair.of(MatrixUtils.createRealIdentityMatrix(4), (double) item);
+        }, 2);
+        for (int i = 0; i < 100; i++) {
+            pipeline.accept(i);
+        }
+        try {
+            pipeline.finish();
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+        Assert.assertEquals(0, liveWorkersCount());
+    }
+
+    @Test
+    public void testCallerScoresWhenQueueIsFull() throws Exception {
+        int workersCount = 2;
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger callerScored = new AtomicInteger();
+        Thread caller = Thread.currentThread();
+        CliqueScoringPipeline<Integer> pipeline = new CliqueScoringPipeline<>(item -> {
+            if (Thread.currentThread() == caller) {
+                callerScored.incrementAndGet();
+            } else {
+                // workers hold their first items until all are accepted
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return Pair.of(MatrixUtils.createRealIdentityMatrix(4), (double) item);
+        }, workersCount);
+        int extra = 5;
+        int count = CliqueScoringPipeline.QUEUE_CAPACITY + workersCount + extra;
+        for (int i = 0; i < count; i++) {
+            pipeline.accept(i);
+        }
+        release.countDown();
+        Assert.assertEquals(count, pipeline.finish().size());
+        // workers take at most one item each before the queue is full
+        Assert.assertTrue(callerScored.get() >= extra && callerScored.get() <= extra + workersCount);
+    }
+
+    @Test
+    public void testCloseStopsWorkers() throws Exception {
+        CliqueScoringPipeline<Integer> pipeline = new CliqueScoringPipeline<>(
+                item -> Pair.of(MatrixUtils.createRealIdentityMatrix(4), (double) item), 4);
+        for (int i = 0; i < 1000; i++) {
+            pipeline.accept(i);
+        }
+        Assert.assertEquals(4, liveWorkersCount());
+        // as if enumeration failed before finish
+        pipeline.close();
+        Assert.assertEquals(0, liveWorkersCount());
+        pipeline.close();
+    }
+
+    private static int liveWorkersCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("clique-scoring-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
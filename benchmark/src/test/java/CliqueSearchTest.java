@@ -0,0 +1,218 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.BestCliques;
+import ru.ifmo.docking.calculations.CompatibilityGraph;
+import ru.ifmo.docking.calculations.DegeneracyCliquesTask;
+import ru.ifmo.docking.calculations.TomitaTask;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Clique searches against plain Bron-Kerbosch on random graphs. Ligand normals are zero, so
+ * every clique has consistent normals and searches find all maximal cliques of at least three
+ * vertices. Graphs have hub vertices adjacent to most of the others, so subproblems of the
+ * first levels are larger than the sequential limit of {@link TomitaTask} and both its sparse
+ * and dense levels are run.
+ */
+public class CliqueSearchTest {
+    private static final int SIZE = 300;
+    private static final int TOP_COUNT = 50;
+
+    @Test
+    public void testTomitaMatchesReference() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = new Instance(seed);
+            TomitaTask task = new TomitaTask(new int[0], IntStream.range(0, SIZE).toArray(), new int[0],
+                    instance.graph, instance.matches, null);
+            Assert.assertEquals(instance.reference, instance.toSets(invoke(task)));
+        }
+    }
+
+    @Test
+    public void testTomitaSinkMatchesReference() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = new Instance(seed);
+            ConcurrentLinkedQueue<List<GeometryDocker.PointMatch>> found = new ConcurrentLinkedQueue<>();
+            TomitaTask task = new TomitaTask(new int[0], IntStream.range(0, SIZE).toArray(), new int[0],
+                    instance.graph, instance.matches, null, found::add);
+            Assert.assertTrue(invoke(task).isEmpty());
+            Assert.assertEquals(instance.reference, instance.toSets(found));
+        }
+    }
+
+    @Test
+    public void testTomitaSplitsCostlySubproblems() throws Exception {
+        Instance instance = new Instance(4);
+        TomitaTask task = new TomitaTask(new int[0], IntStream.range(0, SIZE).toArray(), new int[0],
+                instance.graph, instance.matches, null);
+        Assert.assertEquals(instance.reference, instance.toSets(invoke(task)));
+        // hub subproblems are costly enough to be forked, most of the small ones are computed in place
+        TomitaTask.Statistics statistics = task.getStatistics();
+        Assert.assertTrue(statistics.getForkedCount() > 0);
+        Assert.assertTrue(statistics.getInlineCount() > statistics.getForkedCount());
+        Assert.assertTrue(statistics.getMaxDepth() > 0);
+    }
+
+    @Test
+    public void testDegeneracyMatchesReference() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            Instance instance = new Instance(seed);
+            ConcurrentLinkedQueue<List<GeometryDocker.PointMatch>> found = new ConcurrentLinkedQueue<>();
+            DegeneracyCliquesTask task = new DegeneracyCliquesTask(instance.graph, instance.matches, found::add);
+            invoke(task);
+            Assert.assertEquals(instance.reference, instance.toSets(found));
+            Assert.assertTrue(task.getDegeneracy() > 0 && task.getDegeneracy() < SIZE);
+        }
+    }
+
+    @Test
+    public void testBestFirstMatchesReference() throws Exception {
+        for (long seed = 1; seed <= 3; seed++) {
+            checkBestFirst(new Instance(seed, 1.2, -0.2));
+        }
+    }
+
+    @Test
+    public void testBestFirstWithCloseWeightsMatchesReference() throws Exception {
+        // bounds differ by less than float precision
+        for (long seed = 1; seed <= 3; seed++) {
+            checkBestFirst(new Instance(seed, 1e-9, 1));
+        }
+    }
+
+    private void checkBestFirst(Instance instance) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<List<GeometryDocker.PointMatch>> found;
+        try {
+            found = BestCliques.search(pool, instance.graph, instance.matches, null, instance.weights, TOP_COUNT);
+        } finally {
+            pool.shutdown();
+        }
+
+        List<List<Integer>> reference = new ArrayList<>(instance.reference);
+        reference.sort((first, second) -> Double.compare(instance.score(second), instance.score(first)));
+        List<List<Integer>> actual = instance.toLists(found);
+        Assert.assertEquals(TOP_COUNT, actual.size());
+        for (int k = 0; k < TOP_COUNT; k++) {
+            Assert.assertEquals(reference.get(k), actual.get(k));
+        }
+    }
+
+    private static <T> T invoke(ForkJoinTask<T> task) {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            return pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class Instance {
+        final CompatibilityGraph graph;
+        final List<GeometryDocker.PointMatch> matches;
+        final double[] weights;
+        final Set<List<Integer>> reference;
+        final Map<GeometryDocker.PointMatch, Integer> ids = new HashMap<>();
+
+        Instance(long seed) throws Exception {
+            this(seed, 0, 0);
+        }
+
+        /**
+         * Weights are uniform in [offset, offset + range).
+         */
+        Instance(long seed, double range, double offset) throws Exception {
+            Random random = new Random(seed);
+            // sparse background, a denser community and hubs adjacent to most vertices
+            boolean[][] adjacent = new boolean[SIZE][SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                for (int j = i + 1; j < SIZE; j++) {
+                    double probability = i < 4 ? 0.8 : (i >= 100 && j < 160 ? 0.35 : 0.04);
+                    adjacent[i][j] = random.nextDouble() < probability;
+                }
+            }
+            graph = CompatibilityGraph.build(SIZE, (i, j) -> adjacent[i][j]);
+
+            double[] receptorPoints = new double[SIZE * 3];
+            double[] ligandPoints = new double[SIZE * 3];
+            double[] receptorNormals = new double[SIZE * 3];
+            for (int k = 0; k < SIZE * 3; k++) {
+                receptorPoints[k] = random.nextDouble() * 20;
+                ligandPoints[k] = random.nextDouble() * 20;
+                receptorNormals[k] = random.nextGaussian();
+            }
+            weights = new double[SIZE];
+            for (int k = 0; k < SIZE; k++) {
+                weights[k] = random.nextDouble() * range + offset;
+            }
+            matches = TestMatches.of(receptorPoints, receptorNormals, ligandPoints, new double[SIZE * 3], weights);
+            for (int k = 0; k < SIZE; k++) {
+                ids.put(matches.get(k), k);
+            }
+
+            reference = new HashSet<>();
+            BitSet p = new BitSet();
+            p.set(0, SIZE);
+            bronKerbosch(new ArrayList<>(), p, new BitSet());
+        }
+
+        private void bronKerbosch(List<Integer> r, BitSet p, BitSet x) {
+            if (p.isEmpty()) {
+                if (x.isEmpty() && r.size() > 2) {
+                    List<Integer> clique = new ArrayList<>(r);
+                    Collections.sort(clique);
+                    reference.add(clique);
+                }
+                return;
+            }
+            for (int v = p.nextSetBit(0); v >= 0; v = p.nextSetBit(v + 1)) {
+                BitSet neighbours = new BitSet();
+                for (int u : graph.neighbours(v)) {
+                    neighbours.set(u);
+                }
+                BitSet pn = (BitSet) p.clone();
+                pn.and(neighbours);
+                BitSet xn = (BitSet) x.clone();
+                xn.and(neighbours);
+                r.add(v);
+                bronKerbosch(r, pn, xn);
+                r.remove(r.size() - 1);
+                p.clear(v);
+                x.set(v);
+            }
+        }
+
+        double score(List<Integer> clique) {
+            return clique.stream().mapToDouble(v -> weights[v]).sum();
+        }
+
+        List<List<Integer>> toLists(Iterable<List<GeometryDocker.PointMatch>> cliques) {
+            List<List<Integer>> result = new ArrayList<>();
+            for (List<GeometryDocker.PointMatch> clique : cliques) {
+                result.add(clique.stream().map(ids::get).sorted().collect(Collectors.toList()));
+            }
+            return result;
+        }
+
+        Set<List<Integer>> toSets(Iterable<List<GeometryDocker.PointMatch>> cliques) {
+            List<List<Integer>> lists = toLists(cliques);
+            Set<List<Integer>> result = new HashSet<>(lists);
+            Assert.assertEquals(lists.size(), result.size());
+            return result;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.CliqueSuperposition;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+
+import java.util.List;
+import java.util.Random;
+
+public class CliqueSuperpositionTest {
+    private static final int SIZE = 12;
+
+    @Test
+    public void testRotationMatchesTransition() throws Exception {
+        Random random = new Random(19);
+        int checked = 0;
+        int consistent = 0;
+        for (int test = 0; test < 2000; test++) {
+            List<GeometryDocker.PointMatch> matches = randomMatches(random, 5);
+            CliqueSuperposition superposition = new CliqueSuperposition(matches, new int[0]);
+            for (int v = 0; v < SIZE; v++) {
+                superposition.push(v);
+                if (superposition.size() < 3) {
+                    continue;
+                }
+                List<GeometryDocker.PointMatch> clique = matches.subList(0, superposition.size());
+                RealMatrix transition = GeometryDocker.findTransition(clique);
+                double[] rotation = superposition.findRotation();
+                if (rotation != null) {
+                    // transition is in row vector convention, rotation in column vector one; rotations
+                    // of nearly collinear triples are ill-conditioned and differ by up to 1e-9
+                    for (int a = 0; a < 3; a++) {
+                        for (int b = 0; b < 3; b++) {
+                            Assert.assertEquals(transition.getEntry(b, a), rotation[a * 3 + b], 1e-8);
+                        }
+                    }
+                    checked++;
+                }
+                boolean expected = GeometryDocker.isNormalsConsistent(clique, transition);
+                Assert.assertEquals(expected, superposition.isNormalsConsistent());
+                if (expected) {
+                    consistent++;
+                }
+            }
+            // popped levels keep superposition of the remaining matches
+            superposition.pop();
+            superposition.pop();
+            List<GeometryDocker.PointMatch> clique = matches.subList(0, SIZE - 2);
+            Assert.assertEquals(GeometryDocker.isNormalsConsistent(clique, GeometryDocker.findTransition(clique)),
+                    superposition.isNormalsConsistent());
+        }
+        Assert.assertTrue(checked > 2000 * (SIZE - 2) * 0.9);
+        Assert.assertTrue(consistent > 0 && consistent < 2000 * (SIZE - 2));
+    }
+
+    @Test
+    public void testCollinearCliquesFallBackToTransition() throws Exception {
+        Random random = new Random(23);
+        int collinearCount = 0;
+        int fallbacks = 0;
+        for (int test = 0; test < 500; test++) {
+            // collinear up to rounding or nearly collinear points
+            boolean collinear = test % 2 == 0;
+            List<GeometryDocker.PointMatch> matches = randomMatches(random, collinear ? 1e-9 : 1e-3);
+            CliqueSuperposition superposition = new CliqueSuperposition(matches, new int[0]);
+            for (int v = 0; v < SIZE; v++) {
+                superposition.push(v);
+                if (superposition.size() < 3) {
+                    continue;
+                }
+                List<GeometryDocker.PointMatch> clique = matches.subList(0, superposition.size());
+                if (collinear) {
+                    collinearCount++;
+                    if (superposition.findRotation() == null) {
+                        fallbacks++;
+                    }
+                }
+                Assert.assertEquals(GeometryDocker.isNormalsConsistent(clique, GeometryDocker.findTransition(clique)),
+                        superposition.isNormalsConsistent());
+            }
+        }
+        // rotation about the common line isn't defined by collinear points
+        Assert.assertEquals(collinearCount, fallbacks);
+    }
+
+    /**
+     * Ligand points along a random line with given spread off the line, receptor points are
+     * rotated and shifted ligand ones with noise. Receptor normals are opposite to rotated
+     * ligand normals with noise, so that some cliques have inconsistent normals.
+     */
+    private static List<GeometryDocker.PointMatch> randomMatches(Random random, double spread) throws Exception {
+        double[] rotation = TestRotations.random(random);
+        double[] direction = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        double[] ligandPoints = new double[SIZE * 3];
+        double[] ligandNormals = new double[SIZE * 3];
+        double[] receptorPoints = new double[SIZE * 3];
+        double[] receptorNormals = new double[SIZE * 3];
+        for (int k = 0; k < SIZE; k++) {
+            double t = random.nextGaussian() * 5;
+            for (int a = 0; a < 3; a++) {
+                ligandPoints[k * 3 + a] = 10 + t * direction[a] + random.nextGaussian() * spread;
+                ligandNormals[k * 3 + a] = random.nextGaussian();
+            }
+            for (int a = 0; a < 3; a++) {
+                double point = 30;
+                double normal = 0;
+                for (int b = 0; b < 3; b++) {
+                    point += rotation[a * 3 + b] * ligandPoints[k * 3 + b];
+                    normal -= rotation[a * 3 + b] * ligandNormals[k * 3 + b];
+                }
+                receptorPoints[k * 3 + a] = point + random.nextGaussian() * 0.3;
+                receptorNormals[k * 3 + a] = normal + random.nextGaussian() * 0.8;
+            }
+        }
+        return TestMatches.of(receptorPoints, receptorNormals, ligandPoints, ligandNormals, new double[SIZE]);
+    }
+}
@@ -0,0 +1,81 @@
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+import ru.ifmo.docking.client.RunConfig;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.List;
+
+public class CoarseCorrelationTest {
+    private static final int COUNT = 2000;
+
+    private final Surface receptor = TestSurfaces.bumpySphere("receptor", 800, 12.0, 0.1);
+    private final Surface ligand = TestSurfaces.bumpySphere("ligand", 400, 8.0, 0.15);
+
+    @Test
+    public void testInfiniteMarginMatchesExactSearch() throws Exception {
+        List<GeometryDocker.PointMatch> exact = new PairSearch(receptor, ligand).top(COUNT);
+        List<GeometryDocker.PointMatch> coarse = new PairSearch(receptor, ligand,
+                "--coarse-bin-size", "2.0", "--coarse-margin", "Infinity").top(COUNT);
+
+        Assert.assertEquals(exact, coarse);
+        for (int i = 0; i < exact.size(); i++) {
+            Assert.assertEquals(exact.get(i).getCorrelation(), coarse.get(i).getCorrelation(), 0);
+        }
+    }
+
+    @Test
+    public void testFiniteMarginRejectsPairs() throws Exception {
+        List<GeometryDocker.PointMatch> exact = new PairSearch(receptor, ligand).top(COUNT);
+        List<GeometryDocker.PointMatch> coarse = new PairSearch(receptor, ligand,
+                "--coarse-bin-size", "2.0", "--coarse-margin", "-0.3").top(COUNT);
+
+        // pairs of exact top are lost only if they were rejected on coarse level
+        Assert.assertFalse(exact.equals(coarse));
+        // pairs passing coarse level keep their exact correlation
+        double bound = exact.get(exact.size() - 1).getCorrelation();
+        for (GeometryDocker.PointMatch match : coarse) {
+            if (match.getCorrelation() > bound) {
+                Assert.assertTrue(exact.contains(match));
+                Assert.assertEquals(exact.get(exact.indexOf(match)).getCorrelation(), match.getCorrelation(), 0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDenseModeRejectsCoarseLevel() throws Exception {
+        new PairSearch(receptor, ligand, "-cm", "dense", "--coarse-bin-size", "2.0").top(COUNT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testVectorBackendRejectsEarlyAbandon() throws Exception {
+        new PairSearch(receptor, ligand, "-cb", "vector", "--early-abandon").top(COUNT);
+    }
+
+    /**
+     * Docker exposing top correlated pairs search configured by command line options.
+     */
+    private static class PairSearch extends GeometryDocker {
+
+        PairSearch(Surface receptor, Surface ligand, String... args) throws Exception {
+            super(receptor, ligand, config(args));
+        }
+
+        List<PointMatch> top(int count) {
+            return findTopCorrelatedPairs(count);
+        }
+
+        private static RunConfig config(String... args) throws Exception {
+            Options options = new Options();
+            options.addOption(Option.builder("cm").hasArg().build());
+            options.addOption(Option.builder("cb").hasArg().build());
+            options.addOption(Option.builder().longOpt("early-abandon").build());
+            options.addOption(Option.builder().longOpt("coarse-bin-size").hasArg().build());
+            options.addOption(Option.builder().longOpt("coarse-margin").hasArg().build());
+            return new RunConfig(new DefaultParser().parse(options, args));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.CompatibilityGraph;
+
+public class CompatibilityGraphTest {
+
+    @Test
+    public void testBuildMatchesPredicate() throws Exception {
+        int size = 500;
+        CompatibilityGraph.EdgePredicate predicate = (i, j) -> (i * 31 + j * 17) % 7 == 0 || Math.abs(i - j) == 3;
+        CompatibilityGraph graph = CompatibilityGraph.build(size, predicate);
+
+        long edges = 0;
+        for (int i = 0; i < size; i++) {
+            int[] neighbours = graph.neighbours(i);
+            Assert.assertEquals(neighbours.length, graph.degree(i));
+            for (int k = 1; k < neighbours.length; k++) {
+                Assert.assertTrue(neighbours[k - 1] < neighbours[k]);
+            }
+            for (int j = 0; j < size; j++) {
+                boolean expected = i != j && predicate.test(Math.min(i, j), Math.max(i, j));
+                Assert.assertEquals(expected, graph.isAdjacent(i, j));
+                if (expected && i < j) {
+                    edges++;
+                }
+            }
+        }
+        Assert.assertEquals(edges, graph.edgesCount());
+    }
+
+    @Test
+    public void testDegeneracyOrder() throws Exception {
+        int size = 400;
+        CompatibilityGraph graph = CompatibilityGraph.build(size, (i, j) -> (i * 13 + j * 29) % 11 < 2 || (i % 20 == 0 && j % 3 == 0));
+        int[] order = graph.degeneracyOrder();
+
+        // degeneracy is the largest of minimal degrees while removing vertices of minimal degree
+        boolean[] removed = new boolean[size];
+        int degeneracy = 0;
+        for (int step = 0; step < size; step++) {
+            int min = -1;
+            for (int u = 0; u < size; u++) {
+                if (!removed[u] && (min < 0 || remainingDegree(graph, u, removed) < remainingDegree(graph, min, removed))) {
+                    min = u;
+                }
+            }
+            degeneracy = Math.max(degeneracy, remainingDegree(graph, min, removed));
+            removed[min] = true;
+        }
+
+        removed = new boolean[size];
+        int maxLater = 0;
+        for (int v : order) {
+            Assert.assertFalse(removed[v]);
+            maxLater = Math.max(maxLater, remainingDegree(graph, v, removed));
+            removed[v] = true;
+        }
+        Assert.assertEquals(degeneracy, maxLater);
+    }
+
+    private int remainingDegree(CompatibilityGraph graph, int v, boolean[] removed) {
+        int result = 0;
+        for (int u : graph.neighbours(v)) {
+            if (!removed[u]) {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import ru.ifmo.docking.model.CorrelationKernel;
+import ru.ifmo.docking.model.SpinImageStack;
+import ru.ifmo.docking.model.Surface;
+
+public class CorrelationKernelTest {
+
+    @Test
+    public void testVectorKernelMatchesScalar() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 1000, 12.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 500, 8.0, 0.15);
+
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+
+        CorrelationKernel vector = CorrelationKernel.forName("vector");
+        // forName falls back to scalar kernel, vector-api profile requires the real one
+        if (Boolean.getBoolean("docking.vectorKernel")) {
+            Assert.assertNotSame(CorrelationKernel.SCALAR, vector);
+        } else {
+            Assume.assumeTrue("Vector kernel is not available", vector != CorrelationKernel.SCALAR);
+        }
+        for (int i = 0; i < receptorStack.size(); i += 3) {
+            for (int j = 0; j < ligandStack.size(); j += 2) {
+                Assert.assertEquals(
+                        CorrelationKernel.SCALAR.correlation(receptorStack, i, ligandStack, j),
+                        vector.correlation(receptorStack, i, ligandStack, j),
+                        1e-9
+                );
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBackend() throws Exception {
+        CorrelationKernel.forName("gpu");
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.ifmo.docking.model.NormalizedSpinImageStack;
+import ru.ifmo.docking.model.SpinImageStack;
+import ru.ifmo.docking.model.Surface;
+
+public class DenseCorrelationSpeedTest {
+    private static final int TILE_SIZE = 64;
+
+    @Test
+    @Ignore
+    public void testAllPairsThroughput() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 4000, 25.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 2000, 15.0, 0.15);
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+        NormalizedSpinImageStack receptorDense = NormalizedSpinImageStack.of(receptorStack);
+        NormalizedSpinImageStack ligandDense = NormalizedSpinImageStack.of(ligandStack);
+        long pairs = (long) receptorStack.size() * ligandStack.size();
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.currentTimeMillis();
+            double checksum = 0;
+            for (int i = 0; i < receptorStack.size(); i++) {
+                for (int j = 0; j < ligandStack.size(); j++) {
+                    checksum += receptorStack.correlation(i, ligandStack, j);
+                }
+            }
+            report("Masked", pairs, System.currentTimeMillis() - start, checksum);
+
+            start = System.currentTimeMillis();
+            checksum = 0;
+            double[] tile = new double[TILE_SIZE * TILE_SIZE];
+            for (int secondFrom = 0; secondFrom < ligandDense.size(); secondFrom += TILE_SIZE) {
+                int secondTo = Math.min(secondFrom + TILE_SIZE, ligandDense.size());
+                for (int firstFrom = 0; firstFrom < receptorDense.size(); firstFrom += TILE_SIZE) {
+                    int firstTo = Math.min(firstFrom + TILE_SIZE, receptorDense.size());
+                    receptorDense.correlations(firstFrom, firstTo, ligandDense, secondFrom, secondTo, tile);
+                    for (int position = 0; position < (firstTo - firstFrom) * (secondTo - secondFrom); position++) {
+                        checksum += tile[position];
+                    }
+                }
+            }
+            report("Dense tiled", pairs, System.currentTimeMillis() - start, checksum);
+        }
+    }
+
+    private void report(String name, long pairs, long millis, double checksum) {
+        System.out.printf("%s: %d ms, %.1f M pairs per second on one core (checksum %f)%n",
+                name, millis, pairs / 1000.0 / Math.max(1, millis), checksum);
+    }
+}
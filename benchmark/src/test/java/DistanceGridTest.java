@@ -0,0 +1,145 @@
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.ifmo.docking.geometry.DistanceGrid;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.Random;
+
+public class DistanceGridTest {
+    private static final double STEP = 0.25;
+    private static final double MARGIN = 1.5;
+
+    @Test
+    public void testCompactStoragesMatchDouble() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 1000, 12.0, 0.1);
+        DistanceGrid exact = new DistanceGrid(surface, STEP, MARGIN);
+        DistanceGrid floats = new DistanceGrid(surface, STEP, MARGIN, "float", false);
+        DistanceGrid fixed = new DistanceGrid(surface, STEP, MARGIN, "fixed16", false);
+        DistanceGrid sparse = new DistanceGrid(surface, STEP, MARGIN, "sparse", false);
+
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            double x = (random.nextDouble() - 0.5) * 30;
+            double y = (random.nextDouble() - 0.5) * 30;
+            double z = (random.nextDouble() - 0.5) * 30;
+            double expected = exact.getDistanceForPoint(x, y, z);
+            Assert.assertEquals(expected, sparse.getDistanceForPoint(x, y, z), 0);
+            if (expected == Double.POSITIVE_INFINITY || expected == Double.MAX_VALUE) {
+                Assert.assertEquals(expected, floats.getDistanceForPoint(x, y, z), 0);
+                Assert.assertEquals(expected, fixed.getDistanceForPoint(x, y, z), 0);
+            } else {
+                Assert.assertEquals(expected, floats.getDistanceForPoint(x, y, z), 1e-5);
+                double clamped = Math.max(-12, Math.min(12, expected));
+                Assert.assertEquals(clamped, fixed.getDistanceForPoint(x, y, z), 12.0 / 32766);
+            }
+        }
+    }
+
+    @Test
+    public void testInterpolation() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 1000, 12.0, 0.1);
+        DistanceGrid nearest = new DistanceGrid(surface, STEP, MARGIN);
+        DistanceGrid interpolated = new DistanceGrid(surface, STEP, MARGIN, "double", true);
+
+        Random random = new Random(5);
+        int checked = 0;
+        for (int i = 0; i < 100000; i++) {
+            // points near the surface, where all cells around have distances
+            double x = (random.nextDouble() - 0.5) * 26;
+            double y = (random.nextDouble() - 0.5) * 26;
+            double z = (random.nextDouble() - 0.5) * 26;
+            double value = interpolated.getDistanceForPoint(x, y, z);
+            double closest = nearest.getDistanceForPoint(x, y, z);
+            // sign of distance may flip between cells close to the surface
+            if (closest == Double.POSITIVE_INFINITY || closest == Double.MAX_VALUE || Math.abs(closest) < 2) {
+                continue;
+            }
+            // farther from the surface distances change by at most the cell diagonal between cells
+            Assert.assertEquals(closest, value, STEP * Math.sqrt(3));
+            checked++;
+        }
+        Assert.assertTrue(checked > 0);
+    }
+
+    @Test
+    public void testDistanceTransformMatchesCubes() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 1000, 12.0, 0.1);
+        DistanceGrid cubes = new DistanceGrid(surface, STEP, MARGIN);
+        DistanceGrid transform = new DistanceGrid(surface, STEP, MARGIN, "double", false, "edt");
+        DistanceGrid sparse = new DistanceGrid(surface, STEP, MARGIN, "sparse", false, "edt");
+
+        Random random = new Random(9);
+        int checked = 0;
+        int equal = 0;
+        for (int i = 0; i < 100000; i++) {
+            double x = (random.nextDouble() - 0.5) * 30;
+            double y = (random.nextDouble() - 0.5) * 30;
+            double z = (random.nextDouble() - 0.5) * 30;
+            double expected = cubes.getDistanceForPoint(x, y, z);
+            double actual = transform.getDistanceForPoint(x, y, z);
+            Assert.assertEquals(actual, sparse.getDistanceForPoint(x, y, z), 0);
+            if (expected == Double.POSITIVE_INFINITY) {
+                Assert.assertEquals(expected, actual, 0);
+                continue;
+            }
+            if (expected == Double.MAX_VALUE || actual == Double.MAX_VALUE) {
+                // bands of both constructions are cubes around points, they differ only at their corners
+                Assert.assertTrue(Math.min(Math.abs(expected), Math.abs(actual)) > 10);
+                continue;
+            }
+            // the nearest point is found up to rounding of points to cells
+            Assert.assertTrue(Math.abs(actual) >= Math.abs(expected));
+            Assert.assertEquals(Math.abs(expected), Math.abs(actual), STEP * Math.sqrt(3));
+            if (Math.abs(expected) >= 2) {
+                Assert.assertEquals(Math.signum(expected), Math.signum(actual), 0);
+            }
+            checked++;
+            if (expected == actual) {
+                equal++;
+            }
+        }
+        Assert.assertTrue(checked > 0);
+        Assert.assertTrue(equal > checked * 0.9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeSparseGridIsRejected() throws Exception {
+        // about 2^34 cells, more than int indices of storages can address
+        Surface surface = TestSurfaces.bumpySphere("receptor", 100, 12.0, 0.1);
+        new DistanceGrid(surface, 0.011, MARGIN, "sparse", false, "edt");
+    }
+
+    @Test
+    @Ignore
+    public void testConstructionSpeed() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 4000, 30.0, 0.1);
+        for (String construction : new String[]{"cube", "edt"}) {
+            long start = System.currentTimeMillis();
+            new DistanceGrid(surface, STEP, MARGIN, "double", false, construction);
+            System.out.printf("%s: %d ms%n", construction, System.currentTimeMillis() - start);
+        }
+    }
+
+    @Test
+    @Ignore
+    public void testLookupSpeed() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 20000, 40.0, 0.1);
+        Random random = new Random(7);
+        double[] points = new double[3000000];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = (random.nextDouble() - 0.5) * 90;
+        }
+        for (String storage : new String[]{"double", "float", "fixed16", "sparse"}) {
+            DistanceGrid grid = new DistanceGrid(surface, STEP, MARGIN, storage, false);
+            for (int run = 0; run < 3; run++) {
+                long start = System.currentTimeMillis();
+                double sum = 0;
+                for (int i = 0; i < points.length; i += 3) {
+                    sum += Math.min(100, grid.getDistanceForPoint(points[i], points[i + 1], points[i + 2]));
+                }
+                System.out.printf("%s: %d ms (%f)%n", storage, System.currentTimeMillis() - start, sum);
+            }
+        }
+    }
+}
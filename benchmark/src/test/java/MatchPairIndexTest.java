@@ -0,0 +1,101 @@
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+import ru.ifmo.docking.calculations.dockers.MatchPairIndex;
+import ru.ifmo.docking.calculations.dockers.MatchPairKernel;
+import ru.ifmo.docking.client.RunConfig;
+import ru.ifmo.docking.geometry.Geometry;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class MatchPairIndexTest {
+    private static final double MAX_DISTANCE_DELTA = 1.0;
+    private static final double MAX_ANGLE_DELTA = Math.PI / 8;
+    private static final int CLUSTERS_COUNT = 8;
+    private static final double CLUSTER_RADIUS = 6.0;
+
+    @Test
+    public void testUpperNeighboursMatchExhaustiveSearch() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 3000, 20.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 3000, 20.0, 0.1);
+        int count = 3000;
+        int[] firstIndices = new int[count];
+        int[] secondIndices = new int[count];
+        clusteredMatches(receptor, firstIndices, secondIndices, new Random(43));
+
+        RunConfig config = new RunConfig(new DefaultParser().parse(new Options(), new String[0]));
+        GeometryDocker docker = new GeometryDocker(receptor, ligand, config);
+        List<GeometryDocker.PointMatch> matches = new ArrayList<>(count);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            matches.add(docker.new PointMatch(firstIndices[i], secondIndices[i], 1.0));
+            ids[i] = i;
+        }
+
+        Set<Long> expected = new HashSet<>();
+        MatchPairKernel kernel = new MatchPairKernel(receptor, ligand, firstIndices, secondIndices, ids,
+                MAX_DISTANCE_DELTA, MAX_ANGLE_DELTA);
+        for (int i = 0; i < matches.size(); i++) {
+            for (int j = i + 1; j < matches.size(); j++) {
+                if (kernel.isCompatibleExact(i, j)) {
+                    expected.add(edge(i, j));
+                }
+            }
+        }
+
+        MatchPairIndex index = new MatchPairIndex(matches, MAX_DISTANCE_DELTA);
+        int[][] upper = index.upperNeighbours(receptor, ligand, MAX_ANGLE_DELTA);
+        Set<Long> actual = new HashSet<>();
+        long listed = 0;
+        for (int i = 0; i < upper.length; i++) {
+            for (int j : upper[i]) {
+                actual.add(edge(i, j));
+                listed++;
+            }
+        }
+
+        Assert.assertTrue(expected.size() > 0);
+        // every pair is listed once
+        Assert.assertEquals(actual.size(), listed);
+        Assert.assertEquals(expected, actual);
+        // pairs of incompatible buckets are skipped
+        long pairsCount = (long) matches.size() * (matches.size() - 1) / 2;
+        Assert.assertTrue(index.candidatesCount.sum() < pairsCount);
+    }
+
+    private static long edge(int i, int j) {
+        return (long) Math.min(i, j) * Integer.MAX_VALUE + Math.max(i, j);
+    }
+
+    /**
+     * Matches of receptor points near a few centers, mostly with the same points of the same
+     * shape, so that buckets are crowded and a noticeable part of pairs is compatible.
+     */
+    private static void clusteredMatches(Surface receptor, int[] firstIndices, int[] secondIndices, Random random) {
+        List<List<Integer>> clusters = new ArrayList<>();
+        for (int c = 0; c < CLUSTERS_COUNT; c++) {
+            Point center = receptor.points.get(random.nextInt(receptor.points.size()));
+            List<Integer> cluster = new ArrayList<>();
+            for (int i = 0; i < receptor.points.size(); i++) {
+                if (Geometry.distance(center, receptor.points.get(i)) < CLUSTER_RADIUS) {
+                    cluster.add(i);
+                }
+            }
+            clusters.add(cluster);
+        }
+
+        for (int k = 0; k < firstIndices.length; k++) {
+            List<Integer> cluster = clusters.get(random.nextInt(CLUSTERS_COUNT));
+            firstIndices[k] = cluster.get(random.nextInt(cluster.size()));
+            secondIndices[k] = random.nextInt(4) == 0 ? cluster.get(random.nextInt(cluster.size())) : firstIndices[k];
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.MatchPairKernel;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.Random;
+
+public class MatchPairKernelTest {
+    private static final double MAX_DISTANCE_DELTA = 1.0;
+    private static final double MAX_ANGLE_DELTA = Math.PI / 8;
+
+    @Test
+    public void testKernelMatchesExactPredicate() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 1500, 15.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 1500, 15.0, 0.1);
+        MatchPairKernel kernel = randomMatches(receptor, ligand, 1000, new Random(7));
+
+        int[] row = new int[kernel.size()];
+        long edges = 0;
+        for (int i = 0; i < kernel.size(); i++) {
+            boolean[] compatible = new boolean[kernel.size()];
+            int size = kernel.collect(i, 0, kernel.size(), row, 0);
+            for (int k = 0; k < size; k++) {
+                compatible[row[k]] = true;
+            }
+            edges += size;
+            for (int j = 0; j < kernel.size(); j++) {
+                boolean expected = i != j && (i < j ? kernel.isCompatibleExact(i, j) : kernel.isCompatibleExact(j, i));
+                Assert.assertEquals(expected, compatible[j]);
+            }
+        }
+        Assert.assertTrue(edges > 0);
+    }
+
+    @Test
+    @Ignore
+    public void testKernelThroughput() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 4000, 25.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 4000, 25.0, 0.1);
+        MatchPairKernel kernel = randomMatches(receptor, ligand, 5000, new Random(7));
+        long pairs = (long) kernel.size() * (kernel.size() - 1) / 2;
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.currentTimeMillis();
+            long edges = 0;
+            for (int i = 0; i < kernel.size(); i++) {
+                for (int j = i + 1; j < kernel.size(); j++) {
+                    if (kernel.isCompatibleExact(i, j)) {
+                        edges++;
+                    }
+                }
+            }
+            report("Exact", pairs, System.currentTimeMillis() - start, edges);
+
+            start = System.currentTimeMillis();
+            edges = 0;
+            int[] row = new int[kernel.size()];
+            for (int i = 0; i < kernel.size(); i++) {
+                edges += kernel.collect(i, i + 1, kernel.size(), row, 0);
+            }
+            report("Kernel", pairs, System.currentTimeMillis() - start, edges);
+        }
+    }
+
+    /**
+     * Matches of receptor points mostly with the same points of the same shape, so that
+     * a noticeable part of pairs is compatible.
+     */
+    private MatchPairKernel randomMatches(Surface receptor, Surface ligand, int count, Random random) {
+        int[] firstIndices = new int[count];
+        int[] secondIndices = new int[count];
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            firstIndices[i] = random.nextInt(receptor.points.size());
+            secondIndices[i] = random.nextInt(4) == 0 ? random.nextInt(ligand.points.size()) : firstIndices[i];
+            ids[i] = i;
+        }
+        return new MatchPairKernel(receptor, ligand, firstIndices, secondIndices, ids, MAX_DISTANCE_DELTA, MAX_ANGLE_DELTA);
+    }
+
+    private void report(String name, long pairs, long millis, long edges) {
+        System.out.printf("%s: %d ms, %.1f M pairs per second on one core (%d edges)%n",
+                name, millis, pairs / 1000.0 / Math.max(1, millis), edges);
+    }
+}
@@ -0,0 +1,77 @@
+import org.apache.commons.math3.linear.RealMatrix;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.PoseScorer;
+import ru.ifmo.docking.geometry.DistanceGrid;
+import ru.ifmo.docking.geometry.Geometry;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.Random;
+
+public class PoseScorerTest {
+
+    @Test
+    public void testScoreMatchesTransformedSurface() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 2000, 15.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 500, 8.0, 0.1);
+        DistanceGrid grid = new DistanceGrid(receptor, 0.25, 1.5);
+        PoseScorer scorer = new PoseScorer(grid, ligand);
+
+        Random random = new Random(11);
+        int finiteCount = 0;
+        for (int i = 0; i < 500; i++) {
+            RealMatrix transition = randomTransition(random, 19 + random.nextDouble() * 8);
+            double expected = PoseScorer.score(grid, Geometry.transformSurface(ligand, transition));
+            Assert.assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(scorer.score(transition)));
+            if (!Double.isInfinite(expected)) {
+                finiteCount++;
+            }
+        }
+        Assert.assertTrue(finiteCount > 0);
+    }
+
+    @Test
+    @Ignore
+    public void testScoreSpeed() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 8000, 30.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 2000, 12.0, 0.1);
+        DistanceGrid grid = new DistanceGrid(receptor, 0.25, 1.5);
+        PoseScorer scorer = new PoseScorer(grid, ligand);
+        Random random = new Random(11);
+        RealMatrix[] transitions = new RealMatrix[20000];
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = randomTransition(random, 38 + random.nextDouble() * 10);
+        }
+
+        for (int run = 0; run < 3; run++) {
+            long start = System.currentTimeMillis();
+            double sum = 0;
+            for (RealMatrix transition : transitions) {
+                sum += Math.max(-1e9, PoseScorer.score(grid, Geometry.transformSurface(ligand, transition)));
+            }
+            System.out.printf("Transformed surface: %d ms (%f)%n", System.currentTimeMillis() - start, sum);
+
+            start = System.currentTimeMillis();
+            sum = 0;
+            for (RealMatrix transition : transitions) {
+                sum += Math.max(-1e9, scorer.score(transition));
+            }
+            System.out.printf("Primitive coordinates: %d ms (%f)%n", System.currentTimeMillis() - start, sum);
+        }
+    }
+
+    /**
+     * Random rotation about the origin followed by translation to the given distance, in row
+     * vector convention of {@link Geometry#transformPoint}.
+     */
+    private RealMatrix randomTransition(Random random, double distance) {
+        double[] rotation = TestRotations.random(random);
+        double[] shift = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        double scale = distance / Math.sqrt(shift[0] * shift[0] + shift[1] * shift[1] + shift[2] * shift[2]);
+        for (int a = 0; a < 3; a++) {
+            shift[a] *= scale;
+        }
+        return TestRotations.transition(rotation, shift);
+    }
+}
@@ -0,0 +1,64 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.model.SpinImageLshIndex;
+import ru.ifmo.docking.model.SpinImageStack;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class SpinImageLshIndexTest {
+
+    @Test
+    public void testQueryReturnsIdenticalImage() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 800, 12.0, 0.1);
+        SpinImageStack indexed = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack queried = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+
+        for (int probeDistance = 0; probeDistance <= 1; probeDistance++) {
+            SpinImageLshIndex index = new SpinImageLshIndex(indexed, 4, 12, probeDistance);
+            SpinImageLshIndex.Query query = index.newQuery();
+            for (int l = 0; l < queried.size(); l++) {
+                Assert.assertTrue(candidates(index, queried, l, query).contains(l));
+            }
+        }
+    }
+
+    @Test
+    public void testMultiprobeContainsExactBuckets() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 800, 12.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 400, 8.0, 0.15);
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+
+        SpinImageLshIndex exact = new SpinImageLshIndex(receptorStack, 4, 12, 0);
+        SpinImageLshIndex multiprobe = new SpinImageLshIndex(receptorStack, 4, 12, 1);
+        SpinImageLshIndex.Query exactQuery = exact.newQuery();
+        SpinImageLshIndex.Query multiprobeQuery = multiprobe.newQuery();
+        long exactCount = 0;
+        long multiprobeCount = 0;
+        for (int l = 0; l < ligandStack.size(); l++) {
+            Set<Integer> exactCandidates = candidates(exact, ligandStack, l, exactQuery);
+            Set<Integer> multiprobeCandidates = candidates(multiprobe, ligandStack, l, multiprobeQuery);
+            Assert.assertTrue(multiprobeCandidates.containsAll(exactCandidates));
+            exactCount += exactCandidates.size();
+            multiprobeCount += multiprobeCandidates.size();
+        }
+        Assert.assertTrue(multiprobeCount > exactCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyBits() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 100, 12.0, 0.1);
+        new SpinImageLshIndex(SpinImageStack.compute(receptor, 6.0, 1.0, false), 1, 21, 0);
+    }
+
+    private Set<Integer> candidates(SpinImageLshIndex index, SpinImageStack images, int l, SpinImageLshIndex.Query query) {
+        int size = index.query(images, l, query);
+        Set<Integer> result = new HashSet<>();
+        for (int position = 0; position < size; position++) {
+            Assert.assertTrue(result.add(query.get(position)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,183 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.Vector;
+import ru.ifmo.docking.model.AbandonStatistics;
+import ru.ifmo.docking.model.NormalizedSpinImageStack;
+import ru.ifmo.docking.model.SpinImage;
+import ru.ifmo.docking.model.SpinImageCache;
+import ru.ifmo.docking.model.SpinImageStack;
+import ru.ifmo.docking.model.Surface;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SpinImageStackTest {
+
+    @Test
+    public void testStackCorrelationMatchesSpinImage() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 800, 12.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 400, 8.0, 0.15);
+
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+
+        for (int i = 0; i < receptor.points.size(); i += 7) {
+            SpinImage first = SpinImage.compute(i, receptor, 6.0, 1.0);
+            for (int j = 0; j < ligand.points.size(); j += 5) {
+                SpinImage second = SpinImage.compute(j, ligand, 6.0, 1.0);
+                Assert.assertEquals(first.correlation(second), receptorStack.correlation(i, ligandStack, j), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testEarlyAbandonedCorrelation() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 800, 12.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 400, 8.0, 0.15);
+
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+        AbandonStatistics statistics = new AbandonStatistics(receptorStack.getRows());
+
+        for (double threshold : new double[]{-0.5, 0.3, 0.6, 0.8}) {
+            for (int i = 0; i < receptor.points.size(); i += 3) {
+                for (int j = 0; j < ligand.points.size(); j += 2) {
+                    double exact = receptorStack.correlation(i, ligandStack, j);
+                    double bounded = receptorStack.correlation(i, ligandStack, j, threshold, statistics);
+                    if (bounded == Double.NEGATIVE_INFINITY) {
+                        Assert.assertTrue(exact < threshold);
+                    } else {
+                        Assert.assertEquals(exact, bounded, 0.0);
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(statistics.getAbandoned() > 0);
+    }
+
+    @Test
+    public void testNormalizedTileCorrelation() throws Exception {
+        Surface receptor = TestSurfaces.bumpySphere("receptor", 300, 10.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 200, 8.0, 0.15);
+
+        SpinImageStack receptorStack = SpinImageStack.compute(receptor, 6.0, 1.0, false);
+        SpinImageStack ligandStack = SpinImageStack.compute(ligand, 6.0, 1.0, true);
+        NormalizedSpinImageStack receptorDense = NormalizedSpinImageStack.of(receptorStack);
+        NormalizedSpinImageStack ligandDense = NormalizedSpinImageStack.of(ligandStack);
+
+        int firstFrom = 13;
+        int firstTo = 50;
+        int secondFrom = 7;
+        int secondTo = 40;
+        double[] tile = new double[(firstTo - firstFrom) * (secondTo - secondFrom)];
+        receptorDense.correlations(firstFrom, firstTo, ligandDense, secondFrom, secondTo, tile);
+
+        int size = receptorStack.getRows() * receptorStack.getColumns();
+        for (int i = firstFrom; i < firstTo; i++) {
+            for (int j = secondFrom; j < secondTo; j++) {
+                double sumP = receptorStack.getSum(i);
+                double sumQ = ligandStack.getSum(j);
+                double sumPQ = 0;
+                for (int row = 0; row < receptorStack.getRows(); row++) {
+                    for (int column = 0; column < receptorStack.getColumns(); column++) {
+                        sumPQ += receptorStack.getBin(i, row, column) * ligandStack.getBin(j, receptorStack.getRows() - row - 1, column);
+                    }
+                }
+                double expected = (size * sumPQ - sumP * sumQ) / Math.sqrt(
+                        (size * receptorStack.getSquareSum(i) - sumP * sumP) * (size * ligandStack.getSquareSum(j) - sumQ * sumQ));
+
+                double actual = tile[(i - firstFrom) * (secondTo - secondFrom) + (j - secondFrom)];
+                Assert.assertEquals(expected, actual, 1e-9);
+                Assert.assertEquals(receptorDense.correlation(i, ligandDense, j), actual, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("ligand", 600, 10.0, 0.15);
+        Surface changed = displaced(surface, 100, 160);
+
+        SpinImageStack stack = SpinImageStack.compute(surface, 6.0, 1.0, true);
+        SpinImageStack updated = stack.update(surface, changed, changed.changedPoints(surface), 6.0, 1.0);
+
+        Assert.assertEquals(60, changed.changedPoints(surface).length);
+        assertStacksEqual(SpinImageStack.compute(changed, 6.0, 1.0, true), updated);
+    }
+
+    @Test
+    public void testCachedUpdate() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("ligand", 600, 10.0, 0.15);
+        Surface changed = displaced(surface, 300, 340);
+        Surface smaller = TestSurfaces.bumpySphere("smaller", 500, 10.0, 0.15);
+        SpinImageStack expected = SpinImageStack.compute(changed, 6.0, 1.0, true);
+
+        File directory = Files.createTempDirectory("spin-cache").toFile();
+        SpinImageCache cache = new SpinImageCache(directory);
+        SpinImageStack updated = cache.getUpdated(changed, surface, 6.0, 1.0, true);
+        assertStacksEqual(expected, updated);
+        Assert.assertSame(updated, cache.getUpdated(changed, surface, 6.0, 1.0, true));
+        Assert.assertSame(updated, cache.get(changed, 6.0, 1.0, true));
+
+        // stacks of both the previous and the updated surface are written through
+        Assert.assertEquals(2, directory.listFiles().length);
+        assertStacksEqual(expected, new SpinImageCache(directory).get(changed, 6.0, 1.0, true));
+        assertStacksEqual(expected, new SpinImageCache(directory).getUpdated(changed, smaller, 6.0, 1.0, true));
+
+        // surfaces of different vertex counts are computed from scratch
+        assertStacksEqual(SpinImageStack.compute(smaller, 6.0, 1.0, true),
+                new SpinImageCache(null).getUpdated(smaller, surface, 6.0, 1.0, true));
+    }
+
+    @Test
+    public void testCacheFileRoundTrip() throws Exception {
+        Surface surface = TestSurfaces.bumpySphere("receptor", 500, 10.0, 0.1);
+        Surface sameSurface = TestSurfaces.bumpySphere("other name", 500, 10.0, 0.1);
+        Surface ligand = TestSurfaces.bumpySphere("ligand", 300, 8.0, 0.15);
+
+        File directory = Files.createTempDirectory("spin-cache").toFile();
+        SpinImageStack computed = new SpinImageCache(directory).get(surface, 6.0, 1.0, false);
+        SpinImageStack loaded = new SpinImageCache(directory).get(sameSurface, 6.0, 1.0, false);
+        SpinImageStack ligandStack = new SpinImageCache(directory).get(ligand, 6.0, 1.0, true);
+
+        Assert.assertEquals(2, directory.listFiles().length);
+        Assert.assertFalse(loaded.isFlipped());
+        for (int i = 0; i < computed.size(); i += 3) {
+            Assert.assertEquals(computed.getNonZeroCount(i), loaded.getNonZeroCount(i));
+            for (int j = 0; j < ligandStack.size(); j += 7) {
+                Assert.assertEquals(computed.correlation(i, ligandStack, j), loaded.correlation(i, ligandStack, j), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Same surface with vertices in [from, to) moved along their normals and normals tilted.
+     */
+    private static Surface displaced(Surface surface, int from, int to) {
+        List<Point> points = new ArrayList<>(surface.points);
+        List<Vector> normals = new ArrayList<>(surface.normals);
+        for (int i = from; i < to; i++) {
+            Vector normal = surface.normals.get(i);
+            points.set(i, points.get(i).asVector().add(normal.mul(0.7)).asPoint());
+            normals.set(i, normal.add(new Vector(0.1, -0.2, 0.05)).unite());
+        }
+        return new Surface("conformer", points, normals, Collections.emptyList(), null, null);
+    }
+
+    private static void assertStacksEqual(SpinImageStack expected, SpinImageStack actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k++) {
+            Assert.assertEquals(expected.getNonZeroCount(k), actual.getNonZeroCount(k));
+            Assert.assertEquals(expected.getSum(k), actual.getSum(k), 1e-9);
+            for (int i = 0; i < expected.getRows(); i++) {
+                for (int j = 0; j < expected.getColumns(); j++) {
+                    Assert.assertEquals(expected.getBin(k, i, j), actual.getBin(k, i, j), 1e-9);
+                }
+            }
+        }
+    }
+}
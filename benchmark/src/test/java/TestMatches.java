@@ -0,0 +1,47 @@
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+import ru.ifmo.docking.client.RunConfig;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.Vector;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Matches of receptor and ligand points given by coordinates, used instead of matches of real
+ * surfaces in clique tests.
+ */
+public class TestMatches {
+
+    /**
+     * Match k pairs k-th receptor point with k-th ligand point, coordinates are consecutive
+     * triples of arrays.
+     */
+    public static List<GeometryDocker.PointMatch> of(double[] receptorPoints, double[] receptorNormals,
+                                                     double[] ligandPoints, double[] ligandNormals,
+                                                     double[] correlations) throws Exception {
+        Surface receptor = surface("receptor", receptorPoints, receptorNormals);
+        Surface ligand = surface("ligand", ligandPoints, ligandNormals);
+        RunConfig config = new RunConfig(new DefaultParser().parse(new Options(), new String[0]));
+        GeometryDocker docker = new GeometryDocker(receptor, ligand, config);
+
+        List<GeometryDocker.PointMatch> matches = new ArrayList<>(correlations.length);
+        for (int k = 0; k < correlations.length; k++) {
+            matches.add(docker.new PointMatch(k, k, correlations[k]));
+        }
+        return matches;
+    }
+
+    private static Surface surface(String name, double[] coordinates, double[] normalCoordinates) {
+        List<Point> points = new ArrayList<>();
+        List<Vector> normals = new ArrayList<>();
+        for (int i = 0; i < coordinates.length; i += 3) {
+            points.add(new Point(coordinates[i], coordinates[i + 1], coordinates[i + 2]));
+            normals.add(new Vector(normalCoordinates[i], normalCoordinates[i + 1], normalCoordinates[i + 2]));
+        }
+        return new Surface(name, points, normals, Collections.emptyList(), null, null);
+    }
+}
@@ -0,0 +1,80 @@
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Random;
+
+/**
+ * Random rotations for transition tests.
+ * <p>
+ * Rotations are row-major 3x3 arrays in column vector convention: rotated point is
+ * {@code p'[a] = sum over b of rotation[a * 3 + b] * p[b]}. Transitions of
+ * {@link ru.ifmo.docking.geometry.Geometry#transformPoint} are 4x4 matrices in row vector
+ * convention instead, so {@link #transition} transposes the rotation.
+ */
+public class TestRotations {
+
+    /**
+     * Rotation uniformly distributed over all rotations.
+     */
+    public static double[] random(Random random) {
+        double w = random.nextGaussian();
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        return ofQuaternion(w / norm, x / norm, y / norm, z / norm);
+    }
+
+    /**
+     * Rotation by given angle about a random axis.
+     */
+    public static double[] random(Random random, double angle) {
+        double x = random.nextGaussian();
+        double y = random.nextGaussian();
+        double z = random.nextGaussian();
+        double sin = Math.sin(angle / 2) / Math.sqrt(x * x + y * y + z * z);
+        return ofQuaternion(Math.cos(angle / 2), x * sin, y * sin, z * sin);
+    }
+
+    /**
+     * Rotation by second rotation, then by first one.
+     */
+    public static double[] multiply(double[] first, double[] second) {
+        double[] result = new double[9];
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                for (int c = 0; c < 3; c++) {
+                    result[a * 3 + b] += first[a * 3 + c] * second[c * 3 + b];
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Transition in row vector convention: points are rows multiplied by it, rotated and then
+     * shifted.
+     */
+    public static RealMatrix transition(double[] rotation, double[] shift) {
+        double[][] entries = new double[4][4];
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                entries[b][a] = rotation[a * 3 + b];
+            }
+            entries[3][a] = shift[a];
+        }
+        entries[3][3] = 1;
+        return MatrixUtils.createRealMatrix(entries);
+    }
+
+    /**
+     * Rotation of unit quaternion w + xi + yj + zk.
+     */
+    private static double[] ofQuaternion(double w, double x, double y, double z) {
+        return new double[]{
+                1 - 2 * (y * y + z * z), 2 * (x * y - w * z), 2 * (x * z + w * y),
+                2 * (x * y + w * z), 1 - 2 * (x * x + z * z), 2 * (y * z - w * x),
+                2 * (x * z - w * y), 2 * (y * z + w * x), 1 - 2 * (x * x + y * y)
+        };
+    }
+}
@@ -0,0 +1,44 @@
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.Vector;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Synthetic bumpy spheres used instead of real protein surfaces in tests.
+ */
+public class TestSurfaces {
+
+    public static Surface bumpySphere(String name, int pointsCount, double radius, double bumpiness) {
+        List<Point> points = new ArrayList<>(pointsCount);
+        List<Vector> normals = new ArrayList<>(pointsCount);
+        double goldenAngle = Math.PI * (3 - Math.sqrt(5));
+        double eps = 1e-4;
+
+        for (int i = 0; i < pointsCount; i++) {
+            double z = 1 - 2 * (i + 0.5) / pointsCount;
+            double phi = goldenAngle * i;
+            double theta = Math.acos(z);
+
+            Vector p = surfacePoint(theta, phi, radius, bumpiness);
+            Vector dTheta = surfacePoint(theta + eps, phi, radius, bumpiness).sub(surfacePoint(theta - eps, phi, radius, bumpiness));
+            Vector dPhi = surfacePoint(theta, phi + eps, radius, bumpiness).sub(surfacePoint(theta, phi - eps, radius, bumpiness));
+            Vector normal = dTheta.cross(dPhi);
+            if (normal.dot(p) < 0) {
+                normal = normal.mul(-1);
+            }
+
+            points.add(p.asPoint());
+            normals.add(normal.unite());
+        }
+
+        return new Surface(name, points, normals, Collections.emptyList(), null, null);
+    }
+
+    private static Vector surfacePoint(double theta, double phi, double radius, double bumpiness) {
+        double r = radius * (1 + bumpiness * Math.sin(3 * theta) * Math.cos(2 * phi) + bumpiness * 0.5 * Math.cos(5 * theta));
+        return new Vector(r * Math.sin(theta) * Math.cos(phi), r * Math.sin(theta) * Math.sin(phi), r * Math.cos(theta));
+    }
+}
@@ -0,0 +1,159 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.util.TopK;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TopKTest {
+
+    @Test
+    public void testSingleHeapMatchesSortedReference() throws Exception {
+        Random random = new Random(13);
+        for (int capacity : new int[]{1, 7, 100, 5000}) {
+            double[] scores = randomScores(random, 3000);
+            TopK top = new TopK(capacity);
+            for (int i = 0; i < scores.length; i++) {
+                top.offer(TopK.pack(0, i), scores[i]);
+            }
+            top.sortDescending();
+            check(top, new double[][]{scores}, capacity);
+        }
+    }
+
+    @Test
+    public void testMergedPartsWithSharedBoundMatchSortedReference() throws Exception {
+        Random random = new Random(17);
+        int partsCount = 5;
+        int capacity = 200;
+        double[][] scores = new double[partsCount][];
+        for (int part = 0; part < partsCount; part++) {
+            scores[part] = randomScores(random, 1000 + random.nextInt(3000));
+        }
+
+        AtomicLong sharedBound = TopK.newSharedBound();
+        List<TopK> parts = new ArrayList<>();
+        for (int part = 0; part < partsCount; part++) {
+            parts.add(new TopK(capacity, sharedBound));
+        }
+        // parts offer their entries interleaved, as parallel partitions do
+        int[] positions = new int[partsCount];
+        for (boolean offered = true; offered; ) {
+            offered = false;
+            for (int part = 0; part < partsCount; part++) {
+                for (int step = 0; step < 7 && positions[part] < scores[part].length; step++, positions[part]++) {
+                    TopK top = parts.get(part);
+                    double score = scores[part][positions[part]];
+                    boolean accepted = top.offer(TopK.pack(part, positions[part]), score);
+                    Assert.assertTrue(accepted || score <= top.threshold());
+                    offered = true;
+                }
+            }
+        }
+
+        double[] reference = sortedDescending(scores);
+        double bound = Double.longBitsToDouble(sharedBound.get());
+        Assert.assertTrue(bound > Double.NEGATIVE_INFINITY && bound <= reference[capacity - 1]);
+
+        TopK merged = TopK.merge(parts, capacity);
+        merged.sortDescending();
+        check(merged, scores, capacity);
+    }
+
+    @Test
+    public void testPackedKeys() throws Exception {
+        for (int[] pair : new int[][]{{0, 0}, {1, -1}, {Integer.MAX_VALUE, Integer.MIN_VALUE}, {123456, 654321}}) {
+            long key = TopK.pack(pair[0], pair[1]);
+            Assert.assertEquals(pair[0], TopK.first(key));
+            Assert.assertEquals(pair[1], TopK.second(key));
+        }
+    }
+
+    @Test
+    public void testNaNIsRejected() throws Exception {
+        TopK top = new TopK(3);
+        Assert.assertFalse(top.offer(TopK.pack(0, 0), Double.NaN));
+        Assert.assertTrue(top.offer(TopK.pack(0, 1), 1.0));
+        Assert.assertEquals(1, top.size());
+    }
+
+    @Test
+    public void testZeroCapacityAcceptsNothing() throws Exception {
+        TopK top = new TopK(0, TopK.newSharedBound());
+        Assert.assertEquals(Double.POSITIVE_INFINITY, top.threshold(), 0);
+        Assert.assertFalse(top.offer(TopK.pack(0, 0), 1.0));
+        Assert.assertFalse(top.offer(TopK.pack(0, 1), Double.POSITIVE_INFINITY));
+        Assert.assertEquals(0, top.size());
+
+        TopK merged = TopK.merge(Arrays.asList(top, new TopK(3)), 0);
+        merged.sortDescending();
+        Assert.assertEquals(0, merged.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCapacityIsRejected() throws Exception {
+        new TopK(-1);
+    }
+
+    @Test
+    public void testScoreEqualToThresholdIsRejected() throws Exception {
+        AtomicLong sharedBound = TopK.newSharedBound();
+        TopK full = new TopK(2, sharedBound);
+        full.offer(TopK.pack(0, 0), 1.0);
+        full.offer(TopK.pack(0, 1), 2.0);
+        Assert.assertEquals(1.0, full.threshold(), 0);
+        Assert.assertFalse(full.offer(TopK.pack(0, 2), 1.0));
+
+        // heap that isn't full yet rejects scores equal to the shared bound too
+        TopK other = new TopK(2, sharedBound);
+        Assert.assertEquals(1.0, other.threshold(), 0);
+        Assert.assertFalse(other.offer(TopK.pack(1, 0), 1.0));
+        Assert.assertTrue(other.offer(TopK.pack(1, 1), 1.5));
+        Assert.assertEquals(1, other.size());
+    }
+
+    /**
+     * Scores with many duplicates.
+     */
+    private static double[] randomScores(Random random, int count) {
+        double[] scores = new double[count];
+        for (int i = 0; i < count; i++) {
+            scores[i] = random.nextInt(200) / 100.0 - 1;
+        }
+        return scores;
+    }
+
+    private static double[] sortedDescending(double[][] scores) {
+        double[] all = Arrays.stream(scores).flatMapToDouble(Arrays::stream).toArray();
+        Arrays.sort(all);
+        for (int i = 0, j = all.length - 1; i < j; i++, j--) {
+            double value = all[i];
+            all[i] = all[j];
+            all[j] = value;
+        }
+        return all;
+    }
+
+    /**
+     * Top holds distinct keys with their own scores, and its scores are the highest ones
+     * in descending order. Keys of scores tied at the boundary may be any of the tied ones.
+     */
+    private static void check(TopK top, double[][] scores, int capacity) {
+        double[] reference = sortedDescending(scores);
+        int expectedSize = Math.min(capacity, reference.length);
+        Assert.assertEquals(expectedSize, top.size());
+
+        Set<Long> keys = new HashSet<>();
+        for (int position = 0; position < top.size(); position++) {
+            long key = top.getKey(position);
+            Assert.assertTrue(keys.add(key));
+            Assert.assertEquals(scores[TopK.first(key)][TopK.second(key)], top.getScore(position), 0);
+            Assert.assertEquals(reference[position], top.getScore(position), 0);
+        }
+    }
+}
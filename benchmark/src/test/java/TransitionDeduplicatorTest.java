@@ -0,0 +1,60 @@
+import org.junit.Assert;
+import org.junit.Test;
+import ru.ifmo.docking.calculations.dockers.TransitionDeduplicator;
+import ru.ifmo.docking.geometry.Point;
+
+import java.util.Random;
+
+public class TransitionDeduplicatorTest {
+    private static final double ANGLE = Math.toRadians(5);
+    private static final double SHIFT = 1.0;
+
+    // ligand center is at the origin, so the transformed center is the translation
+    private final TransitionDeduplicator deduplicator = new TransitionDeduplicator(new Point(0, 0, 0), ANGLE, SHIFT);
+
+    @Test
+    public void testNearlyIdenticalTransitionsShareBin() throws Exception {
+        Random random = new Random(29);
+        for (int test = 0; test < 1000; test++) {
+            // quaternions of rotations by nearly pi change sign on small perturbations
+            double[] rotation = TestRotations.random(random, 0.9 * Math.PI * random.nextDouble());
+            double[] shift = randomShift(random);
+            double[] perturbed = TestRotations.multiply(TestRotations.random(random, 1e-9), rotation);
+            double[] perturbedShift = shift.clone();
+            perturbedShift[test % 3] += 1e-9;
+            Assert.assertEquals(deduplicator.binOf(TestRotations.transition(rotation, shift)),
+                    deduplicator.binOf(TestRotations.transition(perturbed, perturbedShift)));
+        }
+    }
+
+    @Test
+    public void testRotatedTransitionsDontShareBin() throws Exception {
+        Random random = new Random(31);
+        for (int test = 0; test < 1000; test++) {
+            double[] rotation = TestRotations.random(random, Math.PI * random.nextDouble());
+            double[] shift = randomShift(random);
+            // quaternions of rotations at twice the bin angle are at least one bin step apart in some component
+            double[] step = TestRotations.random(random, 2 * ANGLE * (1 + random.nextDouble()));
+            double[] rotated = TestRotations.multiply(step, rotation);
+            Assert.assertFalse(deduplicator.binOf(TestRotations.transition(rotation, shift))
+                    == deduplicator.binOf(TestRotations.transition(rotated, shift)));
+        }
+    }
+
+    @Test
+    public void testShiftedTransitionsDontShareBin() throws Exception {
+        Random random = new Random(37);
+        for (int test = 0; test < 1000; test++) {
+            double[] rotation = TestRotations.random(random, Math.PI * random.nextDouble());
+            double[] shift = randomShift(random);
+            double[] shifted = shift.clone();
+            shifted[test % 3] += SHIFT * (1 + random.nextDouble());
+            Assert.assertFalse(deduplicator.binOf(TestRotations.transition(rotation, shift))
+                    == deduplicator.binOf(TestRotations.transition(rotation, shifted)));
+        }
+    }
+
+    private static double[] randomShift(Random random) {
+        return new double[]{random.nextDouble() * 100 - 50, random.nextDouble() * 100 - 50, random.nextDouble() * 100 - 50};
+    }
+}
@@ -0,0 +1,56 @@
+package ru.ifmo.docking.model;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Spin image correlation on jdk.incubator.vector.
+ * <p>
+ * Bins count and cross product are accumulated lanes-wide over the {@code p != 0 || q != 0} mask.
+ * Masked sums and sums of squares of each image are equal to the precomputed ones, because
+ * bins outside the mask are zero. Compiled only with vector-api profile, see {@link CorrelationKernel#forName}.
+ */
+public class VectorCorrelationKernel implements CorrelationKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public double correlation(SpinImageStack first, int k, SpinImageStack second, int l) {
+        double sumP = first.sums[k];
+        double sumQ = second.sums[l];
+        if (sumP == 0 || sumQ == 0) {
+            return 0;
+        }
+
+        double[] p = first.bins;
+        double[] q = second.bins;
+        int pOffset = k * first.stride;
+        int qOffset = l * second.stride;
+        int stride = first.stride;
+
+        DoubleVector products = DoubleVector.zero(SPECIES);
+        int n = 0;
+        int index = 0;
+        for (; index < SPECIES.loopBound(stride); index += SPECIES.length()) {
+            DoubleVector pValues = DoubleVector.fromArray(SPECIES, p, pOffset + index);
+            DoubleVector qValues = DoubleVector.fromArray(SPECIES, q, qOffset + index);
+            VectorMask<Double> mask = pValues.compare(VectorOperators.NE, 0.0).or(qValues.compare(VectorOperators.NE, 0.0));
+            n += mask.trueCount();
+            products = pValues.fma(qValues, products);
+        }
+        double sumPQ = products.reduceLanes(VectorOperators.ADD);
+        for (; index < stride; index++) {
+            double pValue = p[pOffset + index];
+            double qValue = q[qOffset + index];
+            if (pValue != 0 || qValue != 0) {
+                n += 1;
+                sumPQ += pValue * qValue;
+            }
+        }
+
+        double sumPP = first.squareSums[k];
+        double sumQQ = second.squareSums[l];
+        return (n * sumPQ - sumP * sumQ) / Math.sqrt((n * sumPP - sumP * sumP) * (n * sumQQ - sumQ * sumQ));
+    }
+}
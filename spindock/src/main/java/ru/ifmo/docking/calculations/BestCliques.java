@@ -0,0 +1,168 @@
+package ru.ifmo.docking.calculations;
+
+import com.google.common.collect.Lists;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Best-first branch and bound search of maximal cliques with the largest sum of vertex weights.
+ * <p>
+ * Search is {@link TomitaTask} which expands candidates in descending order of upper bound
+ * of cliques in their branch: weight of the current clique and the candidate plus positive
+ * weights of candidate neighbours in P, which with unit weights is |R| + 1 + |P and N(v)|.
+ * Branches with bound not above the score of the worst of top cliques found so far are cut,
+ * so the threshold rises faster when the most promising branches are expanded first.
+ */
+public class BestCliques {
+    private final double[] weights;
+    private final int capacity;
+    private final PriorityQueue<Entry> top;
+    private volatile double threshold = Double.NEGATIVE_INFINITY;
+
+    BestCliques(double[] weights, int capacity) {
+        this.weights = weights;
+        this.capacity = capacity;
+        this.top = new PriorityQueue<>(capacity, Comparator.comparingDouble((Entry e) -> e.score));
+    }
+
+    /**
+     * Top maximal cliques of graph by the sum of match weights.
+     *
+     * @param startSet vertices to start cliques with as in {@link TomitaTask}, null for all
+     * @return at most count cliques in descending order of score
+     */
+    public static List<List<GeometryDocker.PointMatch>> search(ForkJoinPool pool,
+                                                               CompatibilityGraph graph,
+                                                               List<GeometryDocker.PointMatch> matches,
+                                                               int[] startSet,
+                                                               double[] weights,
+                                                               int count) {
+        BestCliques best = new BestCliques(weights, count);
+        int[] r = new int[0];
+        int[] p = IntStream.range(0, graph.size()).toArray();
+        int[] x = new int[0];
+        pool.invoke(new TomitaTask(r, p, x, graph, matches, startSet, null, best));
+        return best.sorted(matches);
+    }
+
+    double weight(int v) {
+        return weights[v];
+    }
+
+    double positiveWeight(int v) {
+        return Math.max(0, weights[v]);
+    }
+
+    double score(int[] clique) {
+        double result = 0;
+        for (int v : clique) {
+            result += weights[v];
+        }
+        return result;
+    }
+
+    /**
+     * Whether a clique with the given upper bound of score may enter the top.
+     */
+    boolean isPromising(double bound) {
+        return bound > threshold;
+    }
+
+    /**
+     * Indices of bounds in descending order of bound.
+     */
+    static int[] byDescendingBound(double[] bounds, int size) {
+        // double bits of bounds are ordered as longs after flipping all but the sign bit of negative ones;
+        // callers stop at the first unpromising bound, so the order must be exact and not rounded
+        long[] keys = new long[size];
+        for (int k = 0; k < size; k++) {
+            long bits = Double.doubleToLongBits(bounds[k]);
+            keys[k] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        // equal keys take consecutive positions starting from the first one
+        int[] taken = new int[size];
+        int[] result = new int[size];
+        for (int k = 0; k < size; k++) {
+            int first = lowerBound(sorted, keys[k]);
+            result[size - 1 - first - taken[first]++] = k;
+        }
+        return result;
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int from = 0;
+        int to = sorted.length;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (sorted[middle] < key) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Adds maximal clique to the top if its score is above the threshold.
+     */
+    void offer(int[] clique) {
+        double score = score(clique);
+        if (!isPromising(score)) {
+            return;
+        }
+        synchronized (this) {
+            if (top.size() < capacity) {
+                top.add(new Entry(clique.clone(), score));
+            } else if (score > top.peek().score) {
+                top.poll();
+                top.add(new Entry(clique.clone(), score));
+            }
+            if (top.size() == capacity) {
+                threshold = top.peek().score;
+            }
+        }
+    }
+
+    private synchronized List<List<GeometryDocker.PointMatch>> sorted(List<GeometryDocker.PointMatch> matches) {
+        List<Entry> entries = Lists.newArrayList(top);
+        entries.sort(Comparator.comparingDouble((Entry e) -> -e.score).thenComparing(e -> e.clique, BestCliques::compareCliques));
+
+        List<List<GeometryDocker.PointMatch>> result = Lists.newArrayListWithCapacity(entries.size());
+        for (Entry entry : entries) {
+            List<GeometryDocker.PointMatch> clique = Lists.newArrayListWithCapacity(entry.clique.length);
+            for (int v : entry.clique) {
+                clique.add(matches.get(v));
+            }
+            result.add(clique);
+        }
+        return result;
+    }
+
+    private static int compareCliques(int[] first, int[] second) {
+        for (int k = 0; k < Math.min(first.length, second.length); k++) {
+            if (first[k] != second[k]) {
+                return Integer.compare(first[k], second[k]);
+            }
+        }
+        return Integer.compare(first.length, second.length);
+    }
+
+    private static class Entry {
+        final int[] clique;
+        final double score;
+
+        Entry(int[] clique, double score) {
+            this.clique = clique;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ru.ifmo.docking.calculations;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.math3.linear.RealMatrix;
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.Vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Optimal superposition of ligand points onto receptor points of clique built along
+ * the recursion stack of clique search.
+ * <p>
+ * Every stack level keeps sums of coordinates, squared lengths and products of ligand and
+ * receptor coordinates of clique matches, so pushing or popping a match is O(1). Rotation is
+ * found by Horn's quaternion method: the largest eigenvalue of 4x4 key matrix is the largest
+ * root of its characteristic polynomial found by Newton iterations, and the quaternion is
+ * a column of adjugate of the shifted key matrix. If the eigenvalue is not well separated,
+ * rotation isn't unique and it is found by {@link GeometryDocker#findTransition} as before.
+ */
+public class CliqueSuperposition {
+    private static final int LEVEL_SIZE = 17;
+    private static final int MAX_ITERATIONS = 50;
+    private static final double PRECISION = 1e-13;
+    private static final double MIN_SEPARATION = 1e-6;
+
+    private final List<GeometryDocker.PointMatch> matches;
+    private int[] members = new int[16];
+    private double[] levels = new double[16 * LEVEL_SIZE];
+    private int size;
+
+    private double originFirstX;
+    private double originFirstY;
+    private double originFirstZ;
+    private double originSecondX;
+    private double originSecondY;
+    private double originSecondZ;
+
+    public CliqueSuperposition(List<GeometryDocker.PointMatch> matches, int[] clique) {
+        this.matches = matches;
+        for (int v : clique) {
+            push(v);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds match v to the clique.
+     */
+    public void push(int v) {
+        if (size == members.length) {
+            members = Arrays.copyOf(members, size * 2);
+            levels = Arrays.copyOf(levels, size * 2 * LEVEL_SIZE);
+        }
+        GeometryDocker.PointMatch match = matches.get(v);
+        Point first = match.getFirstPoint();
+        Point second = match.getSecondPoint();
+        if (size == 0) {
+            // sums are kept relative to the first match to avoid cancellation in covariance
+            originFirstX = first.x;
+            originFirstY = first.y;
+            originFirstZ = first.z;
+            originSecondX = second.x;
+            originSecondY = second.y;
+            originSecondZ = second.z;
+        }
+
+        double[] y = {first.x - originFirstX, first.y - originFirstY, first.z - originFirstZ};
+        double[] x = {second.x - originSecondX, second.y - originSecondY, second.z - originSecondZ};
+
+        int from = (size - 1) * LEVEL_SIZE;
+        int to = size * LEVEL_SIZE;
+        for (int k = 0; k < LEVEL_SIZE; k++) {
+            levels[to + k] = size == 0 ? 0 : levels[from + k];
+        }
+        for (int a = 0; a < 3; a++) {
+            levels[to + a] += x[a];
+            levels[to + 3 + a] += y[a];
+            levels[to + 6] += x[a] * x[a];
+            levels[to + 7] += y[a] * y[a];
+            for (int b = 0; b < 3; b++) {
+                levels[to + 8 + a * 3 + b] += x[a] * y[b];
+            }
+        }
+        members[size++] = v;
+    }
+
+    /**
+     * Removes the last added match.
+     */
+    public void pop() {
+        size--;
+    }
+
+    /**
+     * Checks that normals of every match are opposite after optimal superposition of
+     * ligand points onto receptor points, as {@link GeometryDocker#isNormalsConsistent}.
+     * Cliques of at most two matches are always consistent.
+     */
+    public boolean isNormalsConsistent() {
+        if (size <= 2) {
+            return true;
+        }
+        double[] rotation = findRotation();
+        if (rotation == null) {
+            List<GeometryDocker.PointMatch> clique = Lists.newArrayListWithCapacity(size);
+            for (int k = 0; k < size; k++) {
+                clique.add(matches.get(members[k]));
+            }
+            RealMatrix transition = GeometryDocker.findTransition(clique);
+            return GeometryDocker.isNormalsConsistent(clique, transition);
+        }
+
+        for (int k = 0; k < size; k++) {
+            GeometryDocker.PointMatch match = matches.get(members[k]);
+            Vector firstNormal = match.getFirstNormal();
+            Vector secondNormal = match.getSecondNormal();
+            double x = rotation[0] * secondNormal.x + rotation[1] * secondNormal.y + rotation[2] * secondNormal.z;
+            double y = rotation[3] * secondNormal.x + rotation[4] * secondNormal.y + rotation[5] * secondNormal.z;
+            double z = rotation[6] * secondNormal.x + rotation[7] * secondNormal.y + rotation[8] * secondNormal.z;
+            if (firstNormal.x * x + firstNormal.y * y + firstNormal.z * z > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Row-major rotation matrix R minimizing rmsd of R x and y over centered ligand points x
+     * and receptor points y, or null if it can't be reliably found from the quaternion.
+     */
+    public double[] findRotation() {
+        int level = (size - 1) * LEVEL_SIZE;
+        double n = size;
+        double[] s = new double[9];
+        for (int a = 0; a < 3; a++) {
+            for (int b = 0; b < 3; b++) {
+                s[a * 3 + b] = levels[level + 8 + a * 3 + b] - levels[level + a] * levels[level + 3 + b] / n;
+            }
+        }
+        double xx = levels[level + 6] - dot(levels, level, levels, level) / n;
+        double yy = levels[level + 7] - dot(levels, level + 3, levels, level + 3) / n;
+
+        double sxx = s[0], sxy = s[1], sxz = s[2];
+        double syx = s[3], syy = s[4], syz = s[5];
+        double szx = s[6], szy = s[7], szz = s[8];
+        double[] key = {
+                sxx + syy + szz, syz - szy, szx - sxz, sxy - syx,
+                syz - szy, sxx - syy - szz, sxy + syx, szx + sxz,
+                szx - sxz, sxy + syx, -sxx + syy - szz, syz + szy,
+                sxy - syx, szx + sxz, syz + szy, -sxx - syy + szz
+        };
+
+        double squares = 0;
+        for (double value : s) {
+            squares += value * value;
+        }
+        double c2 = -2 * squares;
+        double c1 = -8 * (sxx * (syy * szz - syz * szy) - sxy * (syx * szz - syz * szx) + sxz * (syx * szy - syy * szx));
+        double c0 = determinant4(key);
+
+        // largest root of x^4 + c2 x^2 + c1 x + c0, starting from its upper bound
+        double lambda = (xx + yy) / 2;
+        if (!(lambda > 0)) {
+            return null;
+        }
+        boolean converged = false;
+        for (int iteration = 0; iteration < MAX_ITERATIONS && !converged; iteration++) {
+            double lambda2 = lambda * lambda;
+            double value = (lambda2 + c2) * lambda2 + c1 * lambda + c0;
+            double derivative = 4 * lambda2 * lambda + 2 * c2 * lambda + c1;
+            double next = lambda - value / derivative;
+            converged = Math.abs(next - lambda) <= PRECISION * Math.abs(next);
+            lambda = next;
+        }
+        if (!converged) {
+            return null;
+        }
+
+        for (int k = 0; k < 4; k++) {
+            key[k * 5] -= lambda;
+        }
+        double[] quaternion = null;
+        double maxNorm = 0;
+        for (int column = 0; column < 4; column++) {
+            double[] candidate = adjugateColumn(key, column);
+            double norm = Math.sqrt(dot4(candidate, candidate));
+            if (norm > maxNorm) {
+                maxNorm = norm;
+                quaternion = candidate;
+            }
+        }
+        if (!(maxNorm > MIN_SEPARATION * lambda * lambda * lambda)) {
+            return null;
+        }
+
+        double w = quaternion[0] / maxNorm;
+        double qx = quaternion[1] / maxNorm;
+        double qy = quaternion[2] / maxNorm;
+        double qz = quaternion[3] / maxNorm;
+        return new double[]{
+                w * w + qx * qx - qy * qy - qz * qz, 2 * (qx * qy - w * qz), 2 * (qx * qz + w * qy),
+                2 * (qx * qy + w * qz), w * w - qx * qx + qy * qy - qz * qz, 2 * (qy * qz - w * qx),
+                2 * (qx * qz - w * qy), 2 * (qy * qz + w * qx), w * w - qx * qx - qy * qy + qz * qz
+        };
+    }
+
+    private static double dot(double[] a, int aFrom, double[] b, int bFrom) {
+        return a[aFrom] * b[bFrom] + a[aFrom + 1] * b[bFrom + 1] + a[aFrom + 2] * b[bFrom + 2];
+    }
+
+    private static double dot4(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    }
+
+    /**
+     * Column of adjugate of 4x4 row-major matrix, that is cofactors of its row.
+     */
+    private static double[] adjugateColumn(double[] m, int column) {
+        double[] result = new double[4];
+        for (int row = 0; row < 4; row++) {
+            double minor = minor3(m, column, row);
+            result[row] = ((row + column) & 1) == 0 ? minor : -minor;
+        }
+        return result;
+    }
+
+    /**
+     * Determinant of 4x4 row-major matrix without given row and column.
+     */
+    private static double minor3(double[] m, int skipRow, int skipColumn) {
+        int r0 = skipRow == 0 ? 4 : 0;
+        int r1 = skipRow <= 1 ? 8 : 4;
+        int r2 = skipRow <= 2 ? 12 : 8;
+        int c0 = skipColumn == 0 ? 1 : 0;
+        int c1 = skipColumn <= 1 ? 2 : 1;
+        int c2 = skipColumn <= 2 ? 3 : 2;
+        return m[r0 + c0] * (m[r1 + c1] * m[r2 + c2] - m[r1 + c2] * m[r2 + c1])
+                - m[r0 + c1] * (m[r1 + c0] * m[r2 + c2] - m[r1 + c2] * m[r2 + c0])
+                + m[r0 + c2] * (m[r1 + c0] * m[r2 + c1] - m[r1 + c1] * m[r2 + c0]);
+    }
+
+    private static double determinant4(double[] m) {
+        double result = 0;
+        for (int column = 0; column < 4; column++) {
+            double minor = minor3(m, 0, column);
+            result += (column & 1) == 0 ? m[column] * minor : -m[column] * minor;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,164 @@
+package ru.ifmo.docking.calculations;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Undirected graph over integer vertex ids stored as compressed sparse rows.
+ * <p>
+ * Neighbours of vertex v are {@code neighbours[starts[v], starts[v + 1])}, sorted ascending.
+ */
+public class CompatibilityGraph {
+    final int[] starts;
+    final int[] neighbours;
+
+    private CompatibilityGraph(int[] starts, int[] neighbours) {
+        this.starts = starts;
+        this.neighbours = neighbours;
+    }
+
+    /**
+     * Builds graph of {@code size} vertices with edges between i and j, i &lt; j, satisfying predicate.
+     * <p>
+     * Every row tests its greater neighbours in parallel, then degrees are counted and
+     * rows are filled with both edge directions, so predicate is tested once per pair.
+     */
+    public static CompatibilityGraph build(int size, EdgePredicate predicate) {
+        int[][] upper = new int[size][];
+        IntStream.range(0, size)
+                .parallel()
+                .forEach(i -> upper[i] = IntStream.range(i + 1, size)
+                        .filter(j -> predicate.test(i, j))
+                        .toArray());
+        return fromUpperNeighbours(upper);
+    }
+
+    /**
+     * Builds graph from rows of neighbours listing every edge once, in the row of either of its
+     * vertices, e.g. greater neighbours of every vertex. Rows may be in any order and are
+     * released while the graph is filled.
+     */
+    public static CompatibilityGraph fromUpperNeighbours(int[][] upper) {
+        int size = upper.length;
+        AtomicIntegerArray degrees = new AtomicIntegerArray(size);
+        IntStream.range(0, size)
+                .parallel()
+                .forEach(i -> {
+                    degrees.addAndGet(i, upper[i].length);
+                    for (int j : upper[i]) {
+                        degrees.incrementAndGet(j);
+                    }
+                });
+
+        int[] starts = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            starts[i + 1] = starts[i] + degrees.get(i);
+        }
+
+        int[] neighbours = new int[starts[size]];
+        AtomicIntegerArray positions = new AtomicIntegerArray(size);
+        IntStream.range(0, size)
+                .parallel()
+                .forEach(i -> {
+                    int from = starts[i] + positions.getAndAdd(i, upper[i].length);
+                    System.arraycopy(upper[i], 0, neighbours, from, upper[i].length);
+                    for (int j : upper[i]) {
+                        neighbours[starts[j] + positions.getAndIncrement(j)] = i;
+                    }
+                    upper[i] = null;
+                });
+
+        IntStream.range(0, size)
+                .parallel()
+                .forEach(i -> Arrays.sort(neighbours, starts[i], starts[i + 1]));
+
+        return new CompatibilityGraph(starts, neighbours);
+    }
+
+    public int size() {
+        return starts.length - 1;
+    }
+
+    public long edgesCount() {
+        return neighbours.length / 2;
+    }
+
+    public int degree(int v) {
+        return starts[v + 1] - starts[v];
+    }
+
+    public int[] neighbours(int v) {
+        return Arrays.copyOfRange(neighbours, starts[v], starts[v + 1]);
+    }
+
+    public boolean isAdjacent(int u, int v) {
+        return Arrays.binarySearch(neighbours, starts[u], starts[u + 1], v) >= 0;
+    }
+
+    /**
+     * Degeneracy ordering: every vertex has at most degeneracy neighbours among the vertices
+     * following it, the degeneracy being the largest k such that the graph has a subgraph
+     * with all degrees at least k.
+     * <p>
+     * Vertices are peeled in O(V + E) with a bucket queue by Batagelj and Zaversnik: vertices
+     * are kept sorted by current degree, and removing a vertex moves each of its remaining
+     * neighbours with greater degree to the start of its degree bucket and shrinks the bucket
+     * by one. Degrees are not decreased below the degree of the removed vertex, so the order
+     * is by core number rather than by exact remaining degree.
+     */
+    public int[] degeneracyOrder() {
+        int size = size();
+        int maxDegree = 0;
+        int[] degrees = new int[size];
+        for (int v = 0; v < size; v++) {
+            degrees[v] = degree(v);
+            maxDegree = Math.max(maxDegree, degrees[v]);
+        }
+
+        int[] bucketStarts = new int[maxDegree + 1];
+        for (int v = 0; v < size; v++) {
+            bucketStarts[degrees[v]]++;
+        }
+        for (int d = 0, start = 0; d <= maxDegree; d++) {
+            int count = bucketStarts[d];
+            bucketStarts[d] = start;
+            start += count;
+        }
+
+        int[] order = new int[size];
+        int[] positions = new int[size];
+        for (int v = 0; v < size; v++) {
+            positions[v] = bucketStarts[degrees[v]]++;
+            order[positions[v]] = v;
+        }
+        for (int d = maxDegree; d > 0; d--) {
+            bucketStarts[d] = bucketStarts[d - 1];
+        }
+        bucketStarts[0] = 0;
+
+        for (int i = 0; i < size; i++) {
+            int v = order[i];
+            for (int j = starts[v]; j < starts[v + 1]; j++) {
+                int u = neighbours[j];
+                if (degrees[u] > degrees[v]) {
+                    int first = order[bucketStarts[degrees[u]]];
+                    if (first != u) {
+                        order[positions[u]] = first;
+                        order[bucketStarts[degrees[u]]] = u;
+                        positions[first] = positions[u];
+                        positions[u] = bucketStarts[degrees[u]];
+                    }
+                    bucketStarts[degrees[u]]++;
+                    degrees[u]--;
+                }
+            }
+        }
+        return order;
+    }
+
+    @FunctionalInterface
+    public interface EdgePredicate {
+        boolean test(int first, int second);
+    }
+}
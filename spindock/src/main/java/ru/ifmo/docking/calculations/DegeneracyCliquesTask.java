@@ -0,0 +1,94 @@
+package ru.ifmo.docking.calculations;
+
+import ru.ifmo.docking.calculations.dockers.GeometryDocker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Maximal cliques enumeration with degeneracy ordered outer loop by Eppstein, Loffler and Strash.
+ * <p>
+ * Every vertex v in {@link CompatibilityGraph#degeneracyOrder} starts an independent pivoted
+ * {@link TomitaTask} with R = {v}, P its later neighbours and X its earlier neighbours, so
+ * every maximal clique is found from its first vertex in the order and P of every subproblem
+ * is bounded by degeneracy of the graph instead of the number of vertices. Vertex subproblems
+ * are forked or computed in place as subtasks of {@link TomitaTask}.
+ */
+public class DegeneracyCliquesTask extends RecursiveAction {
+    private final CompatibilityGraph graph;
+    private final TomitaTask root;
+    private int degeneracy;
+    private int subproblemsCount;
+
+    /**
+     * @param sink receiver of cliques as soon as they are found; may be called concurrently
+     */
+    public DegeneracyCliquesTask(CompatibilityGraph graph,
+                                 List<GeometryDocker.PointMatch> matches,
+                                 Consumer<List<GeometryDocker.PointMatch>> sink) {
+
+        this.graph = graph;
+        this.root = new TomitaTask(new int[0], new int[0], new int[0], graph, matches, null, sink);
+    }
+
+    /**
+     * Counters of subtasks of all vertex subproblems.
+     */
+    public TomitaTask.Statistics getStatistics() {
+        return root.getStatistics();
+    }
+
+    /**
+     * The largest number of later neighbours of a vertex, available after completion.
+     */
+    public int getDegeneracy() {
+        return degeneracy;
+    }
+
+    /**
+     * Number of vertices with later neighbours, available after completion.
+     */
+    public int getSubproblemsCount() {
+        return subproblemsCount;
+    }
+
+    @Override
+    protected void compute() {
+        int[] order = graph.degeneracyOrder();
+        int[] ranks = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            ranks[order[i]] = i;
+        }
+
+        Deque<TomitaTask> pending = new ArrayDeque<>();
+        // cliques are passed to the sink, so subtasks results are empty
+        List<List<GeometryDocker.PointMatch>> result = new ArrayList<>();
+        for (int v : order) {
+            int[] later = new int[graph.degree(v)];
+            int[] earlier = new int[graph.degree(v)];
+            int laterCount = 0;
+            int earlierCount = 0;
+            for (int j = graph.starts[v]; j < graph.starts[v + 1]; j++) {
+                int u = graph.neighbours[j];
+                if (ranks[u] > ranks[v]) {
+                    later[laterCount++] = u;
+                } else {
+                    earlier[earlierCount++] = u;
+                }
+            }
+            degeneracy = Math.max(degeneracy, laterCount);
+
+            if (laterCount > 0) {
+                TomitaTask subtask = root.subtask(new int[]{v}, Arrays.copyOf(later, laterCount), Arrays.copyOf(earlier, earlierCount));
+                root.forkOrCompute(subtask, pending, result);
+                subproblemsCount++;
+            }
+        }
+        TomitaTask.joinAll(pending, result);
+    }
+}
@@ -1,163 +1,593 @@
 package ru.ifmo.docking.calculations;
 
 import com.google.common.base.Objects;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import org.apache.commons.math3.linear.RealMatrix;
 import ru.ifmo.docking.calculations.dockers.GeometryDocker;
-import ru.ifmo.docking.model.Surface;
 
 import java.util.*;
 import java.util.concurrent.RecursiveTask;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+/**
+ * Bron-Kerbosch maximal cliques enumeration with Tomita pivoting over {@link CompatibilityGraph}.
+ * Vertex v of graph is {@code matches.get(v)}.
+ * <p>
+ * Large subproblems keep P and X as bitsets over all vertex ids and intersect them with
+ * sparse neighbour rows of the graph, making a subtask per candidate. Subtasks are forked if
+ * the estimated cost of their own subproblem, |P| times the number of pivot neighbours in P,
+ * is at least {@link #SPLIT_COST}, cheaper ones only while the worker has no queued tasks to
+ * be stolen, and the rest are computed in place, so skewed graphs are split where the work is
+ * and the pool isn't flooded with tiny tasks. A task keeps at most {@link #MAX_PENDING} forked
+ * subtasks, joining the oldest ones when there are as many. Subproblems with less
+ * than {@link #SEQUENTIAL_LIMIT} vertices in P are remapped to local indices: P vertices
+ * first, then X vertices, and solved sequentially with dense adjacency bitsets, so that
+ * intersections and pivot selection are word-wise ands and popcounts.
+ * <p>
+ * Normals consistency of clique extended by every candidate is checked by
+ * {@link CliqueSuperposition} kept along the recursion, so extending the clique doesn't
+ * recompute its superposition from scratch.
+ * <p>
+ * With {@link BestCliques} candidates are expanded in descending order of upper bound of
+ * clique score in their branch and branches which can't enter the top are cut.
+ */
 public class TomitaTask extends RecursiveTask<List<List<GeometryDocker.PointMatch>>> {
-    private final Set<GeometryDocker.PointMatch> r;
-    private final Set<GeometryDocker.PointMatch> p;
-    private final Set<GeometryDocker.PointMatch> x;
-    private final Map<GeometryDocker.PointMatch, Set<GeometryDocker.PointMatch>> graph;
-    private final Set<GeometryDocker.PointMatch> startSet;
-    private final Surface firstSurface;
-    private final Surface secondSurface;
-
-    public TomitaTask(Set<GeometryDocker.PointMatch> r,
-                      Set<GeometryDocker.PointMatch> p,
-                      Set<GeometryDocker.PointMatch> x,
-                      Map<GeometryDocker.PointMatch, Set<GeometryDocker.PointMatch>> graph,
-                      Set<GeometryDocker.PointMatch> startSet,
-                      Surface firstSurface,
-                      Surface secondSurface) {
+    private static final int SEQUENTIAL_LIMIT = 100;
+    private static final long SPLIT_COST = 1 << 14;
+    private static final long MIN_FORK_COST = 1 << 8;
+    private static final int MAX_PENDING = 1000;
+    private static final int JOINED_PENDING = 800;
+
+    private final int[] r;
+    private final int[] p;
+    private final int[] x;
+    private final CompatibilityGraph graph;
+    private final List<GeometryDocker.PointMatch> matches;
+    private final int[] startSet;
+    private final Consumer<List<GeometryDocker.PointMatch>> sink;
+    private final BestCliques best;
+    private final Statistics statistics;
+
+    // bitsets of P and X and the pivot of a large subproblem, found when its cost is estimated
+    private long[] pBits;
+    private long[] xBits;
+    private int pivot;
+    private int pivotDegree;
+
+    /**
+     * @param p sorted ids of candidate vertices
+     * @param x sorted ids of excluded vertices
+     */
+    public TomitaTask(int[] r,
+                      int[] p,
+                      int[] x,
+                      CompatibilityGraph graph,
+                      List<GeometryDocker.PointMatch> matches,
+                      int[] startSet) {
+
+        this(r, p, x, graph, matches, startSet, null);
+    }
+
+    /**
+     * @param sink receiver of cliques as soon as they are found, the task result is empty then;
+     *             may be called concurrently
+     */
+    public TomitaTask(int[] r,
+                      int[] p,
+                      int[] x,
+                      CompatibilityGraph graph,
+                      List<GeometryDocker.PointMatch> matches,
+                      int[] startSet,
+                      Consumer<List<GeometryDocker.PointMatch>> sink) {
+
+        this(r, p, x, graph, matches, startSet, sink, null);
+    }
+
+    /**
+     * @param best receiver of cliques and bounds of branch and bound search, the task result is empty then
+     */
+    TomitaTask(int[] r,
+               int[] p,
+               int[] x,
+               CompatibilityGraph graph,
+               List<GeometryDocker.PointMatch> matches,
+               int[] startSet,
+               Consumer<List<GeometryDocker.PointMatch>> sink,
+               BestCliques best) {
 
         this.graph = graph;
+        this.matches = matches;
         this.startSet = startSet;
-        this.firstSurface = firstSurface;
-        this.secondSurface = secondSurface;
-        this.r = Sets.newHashSet(r);
+        this.sink = sink;
+        this.best = best;
+        this.statistics = new Statistics();
+        this.r = r.clone();
+        this.p = p;
+        this.x = x;
+    }
+
+    private TomitaTask(TomitaTask parent, int[] r, int[] p, int[] x) {
+        this.graph = parent.graph;
+        this.matches = parent.matches;
+        this.startSet = null;
+        this.sink = parent.sink;
+        this.best = parent.best;
+        this.statistics = parent.statistics;
+        this.r = r.clone();
         this.p = p;
         this.x = x;
     }
 
+    /**
+     * Task of subproblem sharing graph, receivers and statistics with this task.
+     */
+    TomitaTask subtask(int[] r, int[] p, int[] x) {
+        return new TomitaTask(this, r, p, x);
+    }
+
+    /**
+     * Counters shared by this task and all its subtasks.
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
     @Override
     protected List<List<GeometryDocker.PointMatch>> compute() {
-        if (p.size() < 100) {
-            return computeRecurrent(r, p, x);
+        statistics.maxDepth.accumulateAndGet(r.length, Math::max);
+        if (p.length < SEQUENTIAL_LIMIT) {
+            return new DenseSubproblem(p, x).solve(r, new CliqueSuperposition(matches, r));
         }
 
-        ImmutableSet<GeometryDocker.PointMatch> candidates;
-
-        Set<GeometryDocker.PointMatch> pivotCandidates = Objects.firstNonNull(startSet, p);
-        GeometryDocker.PointMatch pivot = findPivot(pivotCandidates);
-        candidates = Sets.difference(pivotCandidates, graph.get(pivot)).immutableCopy();
+        preparePivot();
+        int[] candidates = difference(Objects.firstNonNull(startSet, p), pivot);
+        double[] bounds = null;
+        int[] order = null;
+        if (best != null) {
+            double rScore = best.score(r);
+            bounds = new double[candidates.length];
+            for (int k = 0; k < candidates.length; k++) {
+                bounds[k] = rScore + best.weight(candidates[k]) + positiveWeightSum(pBits, candidates[k]);
+            }
+            order = BestCliques.byDescendingBound(bounds, candidates.length);
+        }
 
         List<List<GeometryDocker.PointMatch>> result = Lists.newArrayList();
-        Queue<TomitaTask> subtasks = new ArrayDeque<>(1000);
+        Deque<TomitaTask> pending = new ArrayDeque<>();
+        CliqueSuperposition superposition = new CliqueSuperposition(matches, r);
 
-        for (GeometryDocker.PointMatch v : candidates) {
-            r.add(v);
-            if (isValidClique(r)) {
-
-                Set<GeometryDocker.PointMatch> n = graph.get(v);
-
-                Set<GeometryDocker.PointMatch> pn = intersectionSet(p, n);
-                Set<GeometryDocker.PointMatch> xn = intersectionSet(x, n);
+        int[] clique = Arrays.copyOf(r, r.length + 1);
+        for (int k = 0; k < candidates.length; k++) {
+            int index = order == null ? k : order[k];
+            if (best != null && !best.isPromising(bounds[index])) {
+                break;
+            }
+            int v = candidates[index];
+            clique[r.length] = v;
+            if (isValidClique(superposition, v)) {
+                int[] pn = intersection(pBits, v);
+                int[] xn = intersection(xBits, v);
 
-                if (pn.isEmpty()) {
-                    if (xn.isEmpty() && r.size() > 2) {
-                        result.add(Lists.newArrayList(r));
+                if (pn.length == 0) {
+                    if (xn.length == 0 && clique.length > 2) {
+                        emit(clique, result);
                     }
                 } else {
-                    TomitaTask tomitaTask = new TomitaTask(r, pn, xn, graph, null, firstSurface, secondSurface);
-                    tomitaTask.fork();
-                    subtasks.add(tomitaTask);
-
-                    if (subtasks.size() == 1000) {
-                        for (int i = 0; i < 800; i++) {
-                            result.addAll(subtasks.poll().join());
-                        }
-                    }
+                    forkOrCompute(new TomitaTask(this, clique, pn, xn), pending, result);
                 }
             }
-            r.remove(v);
-            p.remove(v);
-            x.add(v);
-        }
-        for (TomitaTask subtask : subtasks) {
-            result.addAll(subtask.join());
+            pBits[v >>> 6] &= ~(1L << v);
+            xBits[v >>> 6] |= 1L << v;
         }
+        joinAll(pending, result);
         return result;
     }
 
-    private List<List<GeometryDocker.PointMatch>> computeRecurrent(Set<GeometryDocker.PointMatch> r, Set<GeometryDocker.PointMatch> p, Set<GeometryDocker.PointMatch> x) {
-        GeometryDocker.PointMatch pivot = findPivot(p);
+    /**
+     * Estimated cost of the subproblem: |P| times the number of pivot neighbours in P, or |P|
+     * squared, which is not less, for subproblems solved with dense bitsets.
+     */
+    private long cost() {
+        if (p.length < SEQUENTIAL_LIMIT) {
+            return (long) p.length * p.length;
+        }
+        preparePivot();
+        return (long) p.length * pivotDegree;
+    }
 
-        List<List<GeometryDocker.PointMatch>> result = Lists.newArrayList();
-        for (GeometryDocker.PointMatch v : Sets.difference(p, graph.get(pivot)).immutableCopy()) {
-            r.add(v);
-            if (isValidClique(r)) {
-                Set<GeometryDocker.PointMatch> n = graph.get(v);
-                Set<GeometryDocker.PointMatch> pn = intersectionSet(p, n);
-                Set<GeometryDocker.PointMatch> xn = intersectionSet(x, n);
-
-                if (pn.isEmpty()) {
-                    if (xn.isEmpty() && r.size() > 2) {
-                        result.add(Lists.newArrayList(r));
-                    }
-                } else {
-                    result.addAll(computeRecurrent(r, pn, xn));
+    /**
+     * Forks costly subtask, or a cheaper one while the queue of this worker has no tasks to be
+     * stolen, and computes it in place otherwise. When {@link #MAX_PENDING} forked subtasks
+     * are pending, the oldest of them are joined, so that a task doesn't keep the arrays of all
+     * its subproblems.
+     */
+    void forkOrCompute(TomitaTask subtask, Deque<TomitaTask> pending, List<List<GeometryDocker.PointMatch>> result) {
+        long cost = subtask.cost();
+        if (cost >= SPLIT_COST || cost >= MIN_FORK_COST && getSurplusQueuedTaskCount() <= 0) {
+            statistics.forkedCount.increment();
+            subtask.fork();
+            pending.add(subtask);
+            if (pending.size() == MAX_PENDING) {
+                for (int i = 0; i < JOINED_PENDING; i++) {
+                    result.addAll(pending.poll().join());
                 }
+            }
+        } else {
+            statistics.inlineCount.increment();
+            result.addAll(subtask.compute());
+        }
+    }
 
+    /**
+     * Joins pending subtasks, the last forked first: they are on top of the own queue, so they
+     * are joined without stealing.
+     */
+    static void joinAll(Deque<TomitaTask> pending, List<List<GeometryDocker.PointMatch>> result) {
+        while (!pending.isEmpty()) {
+            result.addAll(pending.pollLast().join());
+        }
+    }
 
-            }
-            r.remove(v);
-            p.remove(v);
-            x.add(v);
+    private void preparePivot() {
+        if (pBits != null) {
+            return;
         }
-        return result;
+        pBits = toBits(p);
+        xBits = toBits(x);
+        pivot = findPivot(Objects.firstNonNull(startSet, p), pBits);
+        pivotDegree = pivot < 0 ? 0 : intersectionSize(pBits, pivot);
+    }
+
+    private long[] toBits(int[] set) {
+        long[] bits = new long[(graph.size() + 63) >>> 6];
+        for (int v : set) {
+            bits[v >>> 6] |= 1L << v;
+        }
+        return bits;
     }
 
-    private GeometryDocker.PointMatch findPivot(Set<GeometryDocker.PointMatch> candidates) {
-        GeometryDocker.PointMatch max = null;
+    private int findPivot(int[] candidates, long[] pBits) {
+        int max = -1;
         long maxIntersection = -1;
 
-        for (GeometryDocker.PointMatch pointMatch : candidates) {
-            long intersectionSize = intersectionSize(p, graph.get(pointMatch));
+        for (int v : candidates) {
+            long intersectionSize = intersectionSize(pBits, v);
             if (intersectionSize > maxIntersection) {
                 maxIntersection = intersectionSize;
-                max = pointMatch;
+                max = v;
             }
         }
 
-        for (GeometryDocker.PointMatch pointMatch : x) {
-            long intersectionSize = intersectionSize(p, graph.get(pointMatch));
+        for (int v : x) {
+            long intersectionSize = intersectionSize(pBits, v);
             if (intersectionSize > maxIntersection) {
                 maxIntersection = intersectionSize;
-                max = pointMatch;
+                max = v;
             }
         }
 
         return max;
     }
 
-    private long intersectionSize(Set<GeometryDocker.PointMatch> first, Set<GeometryDocker.PointMatch> second) {
-        Set<GeometryDocker.PointMatch> big = first.size() > second.size() ? first : second;
-        Set<GeometryDocker.PointMatch> small = first.size() > second.size() ? second : first;
-        return small.stream().filter(big::contains).count();
+    /**
+     * Number of neighbours of v in bitset.
+     */
+    private int intersectionSize(long[] bits, int v) {
+        int[] neighbours = graph.neighbours;
+        int result = 0;
+        for (int j = graph.starts[v]; j < graph.starts[v + 1]; j++) {
+            int u = neighbours[j];
+            if ((bits[u >>> 6] & (1L << u)) != 0) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sum of positive weights of neighbours of v in bitset.
+     */
+    private double positiveWeightSum(long[] bits, int v) {
+        int[] neighbours = graph.neighbours;
+        double result = 0;
+        for (int j = graph.starts[v]; j < graph.starts[v + 1]; j++) {
+            int u = neighbours[j];
+            if ((bits[u >>> 6] & (1L << u)) != 0) {
+                result += best.positiveWeight(u);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sorted neighbours of v in bitset.
+     */
+    private int[] intersection(long[] bits, int v) {
+        int[] neighbours = graph.neighbours;
+        int[] result = new int[graph.degree(v)];
+        int size = 0;
+        for (int j = graph.starts[v]; j < graph.starts[v + 1]; j++) {
+            int u = neighbours[j];
+            if ((bits[u >>> 6] & (1L << u)) != 0) {
+                result[size++] = u;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Elements of sorted set which are not neighbours of v.
+     */
+    private int[] difference(int[] set, int v) {
+        int[] neighbours = graph.neighbours;
+        int end = v < 0 ? 0 : graph.starts[v + 1];
+        int[] result = new int[set.length];
+        int size = 0;
+        int j = v < 0 ? 0 : graph.starts[v];
+        for (int element : set) {
+            while (j < end && neighbours[j] < element) {
+                j++;
+            }
+            if (j == end || neighbours[j] != element) {
+                result[size++] = element;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private void emit(int[] clique, List<List<GeometryDocker.PointMatch>> result) {
+        if (best != null) {
+            best.offer(clique);
+        } else if (sink == null) {
+            result.add(toMatches(clique));
+        } else {
+            sink.accept(toMatches(clique));
+        }
+    }
+
+    private List<GeometryDocker.PointMatch> toMatches(int[] clique) {
+        List<GeometryDocker.PointMatch> result = Lists.newArrayListWithCapacity(clique.length);
+        for (int v : clique) {
+            result.add(matches.get(v));
+        }
+        return result;
     }
 
-    private Set<GeometryDocker.PointMatch> intersectionSet(Set<GeometryDocker.PointMatch> first, Set<GeometryDocker.PointMatch> second) {
-        Set<GeometryDocker.PointMatch> big = first.size() > second.size() ? first : second;
-        Set<GeometryDocker.PointMatch> small = first.size() > second.size() ? second : first;
-        return small.stream().filter(big::contains).collect(Collectors.toCollection(HashSet::new));
+    /**
+     * Checks normals consistency of clique of superposition extended by v.
+     */
+    private boolean isValidClique(CliqueSuperposition superposition, int v) {
+        superposition.push(v);
+        boolean result = superposition.isNormalsConsistent();
+        superposition.pop();
+        return result;
     }
 
-    private boolean isValidClique(Set<GeometryDocker.PointMatch> r) {
-        if (r.size() > 2) {
-            ArrayList<GeometryDocker.PointMatch> rl = Lists.newArrayList(r);
-            RealMatrix transition = GeometryDocker.findTransition(rl);
-            return GeometryDocker.isNormalsConsistent(rl, transition);
+    /**
+     * Counts of forked and in place computed subtasks and the maximal clique size at which
+     * a subtask was started.
+     */
+    public static class Statistics {
+        private final LongAdder forkedCount = new LongAdder();
+        private final LongAdder inlineCount = new LongAdder();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        public long getForkedCount() {
+            return forkedCount.sum();
+        }
+
+        public long getInlineCount() {
+            return inlineCount.sum();
+        }
+
+        public int getMaxDepth() {
+            return maxDepth.get();
         }
-        return true;
     }
 
+    /**
+     * Subproblem over local indices: [0, pCount) are initial P vertices and [pCount, size)
+     * are initial X vertices, both in ascending id order. Rows of P vertices cover all local
+     * indices, rows of X vertices only P ones, which is enough as P never gains X vertices.
+     */
+    private class DenseSubproblem {
+        private final int[] ids;
+        private final int pCount;
+        private final int pWords;
+        private final int words;
+        private final long[] rows;
+        private final double[] positiveWeights;
+
+        DenseSubproblem(int[] p, int[] x) {
+            this.pCount = p.length;
+            this.ids = new int[p.length + x.length];
+            System.arraycopy(p, 0, ids, 0, p.length);
+            System.arraycopy(x, 0, ids, p.length, x.length);
+            this.pWords = (pCount + 63) >>> 6;
+            this.words = (ids.length + 63) >>> 6;
+            this.rows = new long[pCount * words + x.length * pWords];
+            this.positiveWeights = best == null ? null : new double[pCount];
+            for (int i = 0; best != null && i < pCount; i++) {
+                positiveWeights[i] = best.positiveWeight(ids[i]);
+            }
+
+            int[] neighbours = graph.neighbours;
+            for (int i = 0; i < pCount; i++) {
+                int from = graph.starts[ids[i]];
+                int to = graph.starts[ids[i] + 1];
+                int j = from;
+                for (int local = 0; local < pCount && j < to; local++) {
+                    while (j < to && neighbours[j] < ids[local]) {
+                        j++;
+                    }
+                    if (j < to && neighbours[j] == ids[local]) {
+                        rows[i * words + (local >>> 6)] |= 1L << local;
+                    }
+                }
+                j = from;
+                for (int local = pCount; local < ids.length && j < to; local++) {
+                    while (j < to && neighbours[j] < ids[local]) {
+                        j++;
+                    }
+                    if (j < to && neighbours[j] == ids[local]) {
+                        rows[i * words + (local >>> 6)] |= 1L << local;
+                        rows[rowOffset(local) + (i >>> 6)] |= 1L << i;
+                    }
+                }
+            }
+        }
+
+        private int rowOffset(int local) {
+            return local < pCount ? local * words : pCount * words + (local - pCount) * pWords;
+        }
+
+        List<List<GeometryDocker.PointMatch>> solve(int[] r, CliqueSuperposition superposition) {
+            long[] p = new long[pWords];
+            for (int i = 0; i < pCount; i++) {
+                p[i >>> 6] |= 1L << i;
+            }
+            long[] x = new long[words];
+            for (int local = pCount; local < ids.length; local++) {
+                x[local >>> 6] |= 1L << local;
+            }
+            List<List<GeometryDocker.PointMatch>> result = Lists.newArrayList();
+            solve(r, p, x, superposition, result);
+            return result;
+        }
+
+        private void solve(int[] r, long[] p, long[] x, CliqueSuperposition superposition,
+                           List<List<GeometryDocker.PointMatch>> result) {
+            int pivot = findPivot(p, x);
+
+            long[] candidates = p.clone();
+            if (pivot >= 0) {
+                int pivotOffset = rowOffset(pivot);
+                for (int w = 0; w < pWords; w++) {
+                    candidates[w] &= ~rows[pivotOffset + w];
+                }
+            }
+
+            int[] order = new int[pCount];
+            int count = 0;
+            for (int w = 0; w < pWords; w++) {
+                for (long word = candidates[w]; word != 0; word &= word - 1) {
+                    order[count++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                }
+            }
+            double rScore = 0;
+            double[] bounds = null;
+            if (best != null) {
+                rScore = best.score(r);
+                bounds = new double[count];
+                for (int k = 0; k < count; k++) {
+                    bounds[k] = rScore + best.weight(ids[order[k]]) + positiveWeightSum(p, rowOffset(order[k]));
+                }
+                int[] byBound = BestCliques.byDescendingBound(bounds, count);
+                int[] sorted = new int[count];
+                double[] sortedBounds = new double[count];
+                for (int k = 0; k < count; k++) {
+                    sorted[k] = order[byBound[k]];
+                    sortedBounds[k] = bounds[byBound[k]];
+                }
+                order = sorted;
+                bounds = sortedBounds;
+            }
+
+            int[] clique = Arrays.copyOf(r, r.length + 1);
+            for (int k = 0; k < count; k++) {
+                if (best != null && !best.isPromising(bounds[k])) {
+                    break;
+                }
+                int v = order[k];
+                clique[r.length] = ids[v];
+                superposition.push(ids[v]);
+                if (superposition.isNormalsConsistent()) {
+                    int offset = v * words;
+                    long[] pn = new long[pWords];
+                    long[] xn = new long[words];
+                    boolean pnEmpty = true;
+                    boolean xnEmpty = true;
+                    for (int i = 0; i < pWords; i++) {
+                        pn[i] = p[i] & rows[offset + i];
+                        pnEmpty &= pn[i] == 0;
+                    }
+                    for (int i = 0; i < words; i++) {
+                        xn[i] = x[i] & rows[offset + i];
+                        xnEmpty &= xn[i] == 0;
+                    }
+
+                    if (pnEmpty) {
+                        if (xnEmpty && clique.length > 2) {
+                            emit(clique, result);
+                        }
+                    } else if (best == null || best.isPromising(rScore + best.weight(ids[v]) + positiveWeightSum(pn, -1))) {
+                        solve(clique, pn, xn, superposition, result);
+                    }
+                }
+                superposition.pop();
+                p[v >>> 6] &= ~(1L << v);
+                x[v >>> 6] |= 1L << v;
+            }
+        }
+
+        /**
+         * Vertex of P or X with the most neighbours in P. Ties are resolved to the smallest id,
+         * preferring P vertices, as in ascending scan of P and then X.
+         */
+        private int findPivot(long[] p, long[] x) {
+            int max = -1;
+            int maxIntersection = -1;
+            boolean maxInX = false;
+
+            for (int w = 0; w < pWords; w++) {
+                for (long word = p[w]; word != 0; word &= word - 1) {
+                    int v = (w << 6) + Long.numberOfTrailingZeros(word);
+                    int intersectionSize = intersectionSize(p, v);
+                    if (intersectionSize > maxIntersection) {
+                        maxIntersection = intersectionSize;
+                        max = v;
+                    }
+                }
+            }
+
+            for (int w = 0; w < words; w++) {
+                for (long word = x[w]; word != 0; word &= word - 1) {
+                    int v = (w << 6) + Long.numberOfTrailingZeros(word);
+                    int intersectionSize = intersectionSize(p, v);
+                    if (intersectionSize > maxIntersection || (intersectionSize == maxIntersection && maxInX && ids[v] < ids[max])) {
+                        maxIntersection = intersectionSize;
+                        max = v;
+                        maxInX = true;
+                    }
+                }
+            }
+
+            return max;
+        }
+
+        /**
+         * Sum of positive weights of P vertices in bitset p and in row at offset, or in p only
+         * if offset is negative.
+         */
+        private double positiveWeightSum(long[] p, int offset) {
+            double result = 0;
+            for (int w = 0; w < pWords; w++) {
+                long word = offset < 0 ? p[w] : p[w] & rows[offset + w];
+                for (; word != 0; word &= word - 1) {
+                    result += positiveWeights[(w << 6) + Long.numberOfTrailingZeros(word)];
+                }
+            }
+            return result;
+        }
+
+        private int intersectionSize(long[] p, int v) {
+            int offset = rowOffset(v);
+            int result = 0;
+            for (int w = 0; w < pWords; w++) {
+                result += Long.bitCount(p[w] & rows[offset + w]);
+            }
+            return result;
+        }
+    }
 }
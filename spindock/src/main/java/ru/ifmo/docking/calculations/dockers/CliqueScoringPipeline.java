@@ -0,0 +1,157 @@
+package ru.ifmo.docking.calculations.dockers;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.math3.linear.RealMatrix;
+import ru.ifmo.docking.util.Logger;
+import ru.ifmo.docking.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Scores cliques while they are enumerated. Cliques are passed to scoring workers through
+ * a bounded queue, so only scored transitions are kept instead of all cliques. Items may also
+ * be transitions found before, e.g. by {@link TransitionDeduplicator}.
+ * <p>
+ * When the queue is full, the enumerating thread scores the clique itself, which slows
+ * enumeration down to the scoring rate. Enumeration tasks are not blocked on the queue, as
+ * joins of fork-join tasks waiting for blocked ones make the pool add compensation threads,
+ * which only enumerate more cliques.
+ * <p>
+ * Workers are stopped by {@link #finish} or, if enumeration fails before it, by {@link #close}.
+ */
+public class CliqueScoringPipeline<T> implements Consumer<T> {
+    public static final int QUEUE_CAPACITY = 10000;
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Function<T, Pair<RealMatrix, Double>> scorer;
+    private final List<Thread> workers;
+    private final Queue<Pair<RealMatrix, Double>> results = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final LongAdder cliquesCount = new LongAdder();
+    private boolean stopped;
+
+    /**
+     * @param scorer transition of item and its score, items with infinite score are dropped
+     */
+    public CliqueScoringPipeline(Function<T, Pair<RealMatrix, Double>> scorer, int workersCount) {
+        this.scorer = scorer;
+        this.workers = Lists.newArrayListWithCapacity(workersCount);
+        for (int i = 0; i < workersCount; i++) {
+            Thread worker = new Thread(this::score, "clique-scoring-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void score() {
+        while (true) {
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            if (item == END) {
+                return;
+            }
+            // after a failure items are still taken and dropped until the end
+            if (failure.get() == null) {
+                try {
+                    score((T) item);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+    }
+
+    private void score(T item) {
+        Pair<RealMatrix, Double> scored = scorer.apply(item);
+        if (!Double.isInfinite(scored.second)) {
+            results.add(scored);
+        }
+    }
+
+    @Override
+    public void accept(T item) {
+        cliquesCount.increment();
+        if (!queue.offer(item)) {
+            score(item);
+        }
+    }
+
+    /**
+     * Waits for all accepted items to be scored.
+     *
+     * @return transitions sorted by descending score, ties are ordered by transition entries
+     */
+    public List<RealMatrix> finish() {
+        stop();
+        if (failure.get() != null) {
+            throw new RuntimeException("Clique scoring failed", failure.get());
+        }
+        Logger.log("Cliques count: %d", cliquesCount.sum());
+
+        List<Pair<RealMatrix, Double>> scored = new ArrayList<>(results);
+        Comparator<Pair<RealMatrix, Double>> byScore = (o1, o2) -> -Double.compare(o1.second, o2.second);
+        scored.sort(byScore.thenComparing((o1, o2) -> compareEntries(o1.first, o2.first)));
+
+        List<RealMatrix> transitions = Lists.newArrayListWithCapacity(scored.size());
+        for (Pair<RealMatrix, Double> pair : scored) {
+            transitions.add(pair.first);
+        }
+        return transitions;
+    }
+
+    /**
+     * Stops workers dropping items which are not scored yet, if they are not stopped by
+     * {@link #finish}, so that workers don't wait for items forever after enumeration fails.
+     */
+    public void close() {
+        if (!stopped) {
+            queue.clear();
+            stop();
+        }
+    }
+
+    private void stop() {
+        stopped = true;
+        try {
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static int compareEntries(RealMatrix first, RealMatrix second) {
+        for (int row = 0; row < first.getRowDimension(); row++) {
+            for (int column = 0; column < first.getColumnDimension(); column++) {
+                int result = Double.compare(first.getEntry(row, column), second.getEntry(row, column));
+                if (result != 0) {
+                    return result;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -1,14 +1,13 @@
 package ru.ifmo.docking.calculations.dockers;
 
-import com.google.common.collect.Lists;
+import ru.ifmo.docking.calculations.CompatibilityGraph;
 import ru.ifmo.docking.client.RunConfig;
-import ru.ifmo.docking.model.SpinImage;
 import ru.ifmo.docking.model.Surface;
 import ru.ifmo.docking.util.Logger;
 import ru.ifmo.docking.util.Pair;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 
 public class CombinedDocker extends GeometryDocker {
 
@@ -28,93 +27,36 @@ public class CombinedDocker extends GeometryDocker {
     }
 
     @Override
-    protected List<List<PointMatch>> searchForSolutions(int pairsCount) {
-        List<List<PointMatch>> results = Lists.newArrayListWithCapacity(150000);
-        results.addAll(getPointsMatch(super.findTopCorrelatedPairs(pairsCount)));
-        results.addAll(getPointsMatch(findTopCorrelatedPairsEl(pairsCount)));
-        results.addAll(getPointsMatch(findTopCorrelatedPairsLip(pairsCount)));
+    protected void searchForSolutions(int pairsCount, Consumer<List<PointMatch>> sink) {
+        getPointsMatch(super.findTopCorrelatedPairs(pairsCount), sink);
+        getPointsMatch(findTopCorrelatedPairsEl(pairsCount), sink);
+        getPointsMatch(findTopCorrelatedPairsLip(pairsCount), sink);
 
-        Logger.log("Cliques computation completed. Cliques count: %d", results.size());
-
-        return results;
+        Logger.log("Cliques computation completed");
     }
 
-    private List<List<PointMatch>> getPointsMatch(List<PointMatch> pointMatches) {
-        Map<PointMatch, Set<PointMatch>> graph = constructGraph(pointMatches);
-        Logger.log("Graph constructed");
-        return findCliques(graph, null);
+    private void getPointsMatch(List<PointMatch> pointMatches, Consumer<List<PointMatch>> sink) {
+        CompatibilityGraph graph = constructGraph(pointMatches);
+        Logger.log("Graph constructed: %d edges", graph.edgesCount());
+        findCliques(pointMatches, graph, null, sink);
     }
 
     protected List<PointMatch> findTopCorrelatedPairsLip(int count) {
-        List<SpinImage> firstStack = computeSpinImageStack(receptorSurface);
-        Logger.log("First stack computed");
-        List<SpinImage> secondStack = computeSpinImageStack(ligandSurface);
-        Logger.log("Second stack computed");
-
-        List<List<SpinImage>> partition = Lists.partition(secondStack, secondStack.size() / Runtime.getRuntime().availableProcessors());
-
-        List<PointMatch> result = partition.parallelStream()
-                .flatMap(part -> {
-                    Queue<PointMatch> queue = new PriorityQueue<>((o1, o2) -> Double.compare(o1.correlation, o2.correlation));
-                    for (SpinImage firstImage : firstStack) {
-                        for (SpinImage secondImage : part) {
-                            double correlation = firstImage.correlation(secondImage) + getLipCorrelation(firstImage, secondImage);
-                            if (queue.size() < count || queue.peek().correlation < correlation) {
-                                queue.add(new PointMatch(firstImage.getPointIndex(), secondImage.getPointIndex(), correlation));
-                            }
-                            if (queue.size() > count) {
-                                queue.poll();
-                            }
-                        }
-                    }
-                    return queue.stream();
-                })
-                .collect(Collectors.toList());
-
-        result.sort((o1, o2) -> -Double.compare(o1.correlation, o2.correlation));
-
-        return Lists.newArrayList(result.subList(0, count));
+        return findTopCorrelatedPairs(count, this::getLipCorrelation);
     }
 
 
     protected List<PointMatch> findTopCorrelatedPairsEl(int count) {
-        List<SpinImage> firstStack = computeSpinImageStack(receptorSurface);
-        Logger.log("First stack computed");
-        List<SpinImage> secondStack = computeSpinImageStack(ligandSurface);
-        Logger.log("Second stack computed");
-
-        List<List<SpinImage>> partition = Lists.partition(secondStack, secondStack.size() / Runtime.getRuntime().availableProcessors());
-
-        List<PointMatch> result = partition.parallelStream()
-                .flatMap(part -> {
-                    Queue<PointMatch> queue = new PriorityQueue<>((o1, o2) -> Double.compare(o1.correlation, o2.correlation));
-                    for (SpinImage firstImage : firstStack) {
-                        for (SpinImage secondImage : part) {
-                            double correlation = firstImage.correlation(secondImage) + getElCorrelation(firstImage, secondImage);
-                            if (queue.size() < count || queue.peek().correlation < correlation) {
-                                queue.add(new PointMatch(firstImage.getPointIndex(), secondImage.getPointIndex(), correlation));
-                            }
-                            if (queue.size() > count) {
-                                queue.poll();
-                            }
-                        }
-                    }
-                    return queue.stream();
-                })
-                .collect(Collectors.toList());
-
-        result.sort((o1, o2) -> -Double.compare(o1.correlation, o2.correlation));
-
-        return Lists.newArrayList(result.subList(0, count));
+        return findTopCorrelatedPairs(count, this::getElCorrelation);
     }
 
-    private double getLipCorrelation(SpinImage first, SpinImage second) {
-        double delta = -Math.log(Math.abs(receptorSurface.lipophilicity[first.getPointIndex()] - ligandSurface.lipophilicity[second.getPointIndex()]));
+    private double getLipCorrelation(int firstIndex, int secondIndex) {
+        double delta = -Math.log(Math.abs(receptorSurface.lipophilicity[firstIndex] - ligandSurface.lipophilicity[secondIndex]));
         return (delta - minLipDelta) / (maxLipDelta - minLipDelta);
     }
 
-    private double getElCorrelation(SpinImage first, SpinImage second) {
-        double delta = -Math.log(Math.abs(receptorSurface.electricity[first.getPointIndex()] + ligandSurface.electricity[second.getPointIndex()]));
+    private double getElCorrelation(int firstIndex, int secondIndex) {
+        double delta = -Math.log(Math.abs(receptorSurface.electricity[firstIndex] + ligandSurface.electricity[secondIndex]));
         return (delta - minElDelta) / (maxElDelta - minElDelta);
     }
 
@@ -1,16 +1,10 @@
 package ru.ifmo.docking.calculations.dockers;
 
-import com.google.common.collect.Lists;
 import ru.ifmo.docking.client.RunConfig;
-import ru.ifmo.docking.model.SpinImage;
 import ru.ifmo.docking.model.Surface;
-import ru.ifmo.docking.util.Logger;
 import ru.ifmo.docking.util.Pair;
 
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.stream.Collectors;
 
 public class ElDocker extends GeometryDocker {
 
@@ -26,38 +20,11 @@ public class ElDocker extends GeometryDocker {
 
     @Override
     protected List<PointMatch> findTopCorrelatedPairs(int count) {
-        List<SpinImage> firstStack = computeSpinImageStack(receptorSurface);
-        Logger.log("First stack computed");
-        List<SpinImage> secondStack = computeSpinImageStack(ligandSurface);
-        Logger.log("Second stack computed");
-
-        List<List<SpinImage>> partition = Lists.partition(secondStack, secondStack.size() / Runtime.getRuntime().availableProcessors());
-
-        List<PointMatch> result = partition.parallelStream()
-                .flatMap(part -> {
-                    Queue<PointMatch> queue = new PriorityQueue<>((o1, o2) -> Double.compare(o1.correlation, o2.correlation));
-                    for (SpinImage firstImage : firstStack) {
-                        for (SpinImage secondImage : part) {
-                            double correlation = firstImage.correlation(secondImage) + getElCorrelation(firstImage, secondImage);
-                            if (queue.size() < count || queue.peek().correlation < correlation) {
-                                queue.add(new PointMatch(firstImage.getPointIndex(), secondImage.getPointIndex(), correlation));
-                            }
-                            if (queue.size() > count) {
-                                queue.poll();
-                            }
-                        }
-                    }
-                    return queue.stream();
-                })
-                .collect(Collectors.toList());
-
-        result.sort((o1, o2) -> -Double.compare(o1.correlation, o2.correlation));
-
-        return Lists.newArrayList(result.subList(0, count));
+        return findTopCorrelatedPairs(count, this::getElCorrelation);
     }
 
-    private double getElCorrelation(SpinImage first, SpinImage second) {
-        double delta = -Math.log(Math.abs(receptorSurface.electricity[first.getPointIndex()] + ligandSurface.electricity[second.getPointIndex()]));
+    private double getElCorrelation(int firstIndex, int secondIndex) {
+        double delta = -Math.log(Math.abs(receptorSurface.electricity[firstIndex] + ligandSurface.electricity[secondIndex]));
         return (delta - minElDelta) / (maxElDelta - minElDelta);
     }
 
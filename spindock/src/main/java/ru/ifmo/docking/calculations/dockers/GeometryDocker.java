@@ -1,21 +1,33 @@
 package ru.ifmo.docking.calculations.dockers;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import org.apache.commons.math3.linear.RealMatrix;
+import ru.ifmo.docking.calculations.BestCliques;
+import ru.ifmo.docking.calculations.CompatibilityGraph;
+import ru.ifmo.docking.calculations.DegeneracyCliquesTask;
 import ru.ifmo.docking.calculations.TomitaTask;
 import ru.ifmo.docking.client.RunConfig;
 import ru.ifmo.docking.geometry.DistanceGrid;
 import ru.ifmo.docking.geometry.Geometry;
 import ru.ifmo.docking.geometry.Point;
 import ru.ifmo.docking.geometry.Vector;
-import ru.ifmo.docking.model.SpinImage;
+import ru.ifmo.docking.model.AbandonStatistics;
+import ru.ifmo.docking.model.CorrelationKernel;
+import ru.ifmo.docking.model.NormalizedSpinImageStack;
+import ru.ifmo.docking.model.SpinImageCache;
+import ru.ifmo.docking.model.SpinImageLshIndex;
+import ru.ifmo.docking.model.SpinImageStack;
 import ru.ifmo.docking.model.Surface;
 import ru.ifmo.docking.util.Logger;
 import ru.ifmo.docking.util.Pair;
+import ru.ifmo.docking.util.TopK;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -24,76 +36,77 @@ public class GeometryDocker implements Docker {
     protected final RunConfig config;
 
     public static final double MAX_ANGLE_DELTA = Math.PI / 8;
+    public static final double MAX_DISTANCE_DELTA = 1.0;
+    private static final int DENSE_TILE_SIZE = 64;
     protected final Surface receptorSurface;
     protected final Surface ligandSurface;
 
-    private Map<String, List<SpinImage>> cache = new HashMap<>();
+    private final CorrelationKernel correlationKernel;
+    private final SpinImageCache cache;
 
     public GeometryDocker(Surface receptorSurface, Surface ligandSurface, RunConfig config) {
         this.config = config;
         this.receptorSurface = receptorSurface;
         this.ligandSurface = ligandSurface;
+        this.correlationKernel = CorrelationKernel.forName(config.getCorrelationBackend());
+        String cacheDir = config.getSpinImageCacheDir();
+        this.cache = new SpinImageCache(cacheDir == null ? null : new File(cacheDir));
     }
 
     @Override
     public List<RealMatrix> run() {
         int pairsCount = 50000;
         Logger.log("Use %d surface vertex pairs", pairsCount);
-        List<List<PointMatch>> cliques = searchForSolutions(pairsCount);
 
-        DistanceGrid receptorDistanceGrid = new DistanceGrid(receptorSurface, 0.25, 1.5);
+        DistanceGrid receptorDistanceGrid = new DistanceGrid(receptorSurface, 0.25, 1.5, config.getGridStorage(), config.isGridInterpolation(), config.getGridConstruction());
         Logger.log("Distance grid for receptor constructed");
 
-        return filterAndScoreCliques(cliques, receptorDistanceGrid);
-
+        PoseScorer poseScorer = new PoseScorer(receptorDistanceGrid, ligandSurface);
+        if (config.isDeduplicateTransitions()) {
+            TransitionDeduplicator deduplicator = new TransitionDeduplicator(Geometry.centroid(ligandSurface.points),
+                    Math.toRadians(config.getDedupAngle()), config.getDedupShift());
+            searchForSolutions(pairsCount, deduplicator);
+            // transitions of kept cliques are already found by deduplicator, search threads are free by now
+            CliqueScoringPipeline<RealMatrix> pipeline = new CliqueScoringPipeline<>(
+                    transition -> scoreTransition(poseScorer, transition), config.getCliqueThreads());
+            try {
+                deduplicator.drainTo(pipeline);
+                return pipeline.finish();
+            } finally {
+                pipeline.close();
+            }
+        }
+        CliqueScoringPipeline<List<PointMatch>> pipeline = new CliqueScoringPipeline<>(
+                clique -> scoreTransition(poseScorer, findTransition(clique)), config.getScoringThreads());
+        try {
+            searchForSolutions(pairsCount, pipeline);
+            return pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
     }
 
-    private List<RealMatrix> filterAndScoreCliques(List<List<PointMatch>> cliques, DistanceGrid firstSurfaceGrid) {
-        return cliques
-                .parallelStream()
-                .map(GeometryDocker::findTransition)
-                .map(transition -> Pair.of(transition, Geometry.transformSurface(ligandSurface, transition)))
-                .map(pair -> Pair.of(pair.first, score(firstSurfaceGrid, pair.second)))
-                .filter(pair -> !Double.isInfinite(pair.second))
-                .sorted((o1, o2) -> -Double.compare(o1.second, o2.second))
-                .map(Pair::getFirst)
-                .collect(Collectors.toList());
+    private static Pair<RealMatrix, Double> scoreTransition(PoseScorer poseScorer, RealMatrix transition) {
+        return Pair.of(transition, poseScorer.score(transition));
     }
 
-    protected List<List<PointMatch>> searchForSolutions(int pairsCount) {
+    /**
+     * Passes every found clique to sink as soon as it is found.
+     */
+    protected void searchForSolutions(int pairsCount, Consumer<List<PointMatch>> sink) {
         List<PointMatch> pointMatches = findTopCorrelatedPairs(pairsCount);
         Logger.log("Vertex correlations computed");
         Logger.log("Correlation bound is %f", pointMatches.get(pointMatches.size() - 1).correlation);
 
-        Map<PointMatch, Set<PointMatch>> graph = constructGraph(pointMatches);
-        Logger.log("Graph constructed");
+        CompatibilityGraph graph = constructGraph(pointMatches);
+        Logger.log("Graph constructed: %d edges", graph.edgesCount());
 
-        List<List<PointMatch>> cliques = findCliques(graph, null);
+        findCliques(pointMatches, graph, null, sink);
         Logger.log("Cliques computed");
-        Logger.log("Cliques count: %d", cliques.size());
-        return cliques;
     }
 
     public double score(DistanceGrid grid, Surface transformedSecond) {
-        int bins[] = new int[4];
-        for (Point point : transformedSecond.points) {
-            double d = grid.getDistanceForPoint(point);
-            if (d < -5.0) {
-                return Double.NEGATIVE_INFINITY;
-            } else if (d < -3.5) {
-                bins[0] += 1;
-            } else if (d < -2.0) {
-                bins[1] += 1;
-            } else if (d < -1.0) {
-                bins[2] += 1;
-            } else if (d < 1.0) {
-                bins[3] += 1;
-            }
-        }
-        if ((bins[3] + bins[2] + bins[1] + bins[0]) > transformedSecond.points.size() * 0.4) {
-            return Double.NEGATIVE_INFINITY;
-        }
-        return (bins[3] - bins[2] - bins[1] * 2.5 - bins[0] * 5);
+        return PoseScorer.score(grid, transformedSecond);
     }
 
     public static boolean isNormalsConsistent(List<PointMatch> clique, RealMatrix transitionMatrix) {
@@ -121,118 +134,336 @@ public class GeometryDocker implements Docker {
     }
 
 
-    protected List<List<PointMatch>> findCliques(Map<PointMatch, Set<PointMatch>> graph, Set<PointMatch> startSet) {
-        Set<PointMatch> r = Sets.newHashSet();
-        Set<PointMatch> p = Sets.newHashSet(graph.keySet());
-        Set<PointMatch> x = Sets.newHashSet();
+    protected void findCliques(List<PointMatch> matches, CompatibilityGraph graph, int[] startSet, Consumer<List<PointMatch>> sink) {
+        // pool lives for one search, so its threads don't outlive the docker
+        ForkJoinPool pool = new ForkJoinPool(config.getCliqueThreads());
+        try {
+            findCliques(pool, matches, graph, startSet, sink);
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-        return ForkJoinPool.commonPool().invoke(new TomitaTask(r, p, x, graph, startSet, receptorSurface, ligandSurface));
+    private void findCliques(ForkJoinPool pool, List<PointMatch> matches, CompatibilityGraph graph, int[] startSet, Consumer<List<PointMatch>> sink) {
+        switch (config.getCliqueSearch()) {
+            case "tomita":
+                int[] r = new int[0];
+                int[] p = IntStream.range(0, graph.size()).toArray();
+                int[] x = new int[0];
+
+                TomitaTask task = new TomitaTask(r, p, x, graph, matches, startSet, sink);
+                pool.invoke(task);
+                TomitaTask.Statistics statistics = task.getStatistics();
+                Logger.log("Clique search tasks: %d forked, %d computed in place, %d stolen, max depth %d",
+                        statistics.getForkedCount(), statistics.getInlineCount(),
+                        pool.getStealCount(), statistics.getMaxDepth());
+                break;
+            case "degeneracy":
+                DegeneracyCliquesTask degeneracyTask = new DegeneracyCliquesTask(graph, matches, sink);
+                pool.invoke(degeneracyTask);
+                Logger.log("Graph degeneracy: %d, vertex subproblems: %d, their tasks: %d forked, %d computed in place",
+                        degeneracyTask.getDegeneracy(), degeneracyTask.getSubproblemsCount(),
+                        degeneracyTask.getStatistics().getForkedCount(), degeneracyTask.getStatistics().getInlineCount());
+                break;
+            case "best-first":
+                List<List<PointMatch>> cliques = BestCliques.search(pool, graph, matches, startSet, cliqueWeights(matches), config.getTopCliquesCount());
+                Logger.log("Best cliques found: %d", cliques.size());
+                cliques.forEach(sink);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown clique search: " + config.getCliqueSearch());
+        }
     }
 
-    protected Map<PointMatch, Set<PointMatch>> constructGraph(List<PointMatch> matches) {
-        Map<PointMatch, Set<PointMatch>> result = IntStream.range(0, matches.size())
-                .parallel()
-                .boxed()
-                .collect(Collectors.toConcurrentMap(
-                        matches::get,
-                        i -> IntStream.range(i + 1, matches.size())
-                                .filter(j -> isGoodPair(matches.get(i), matches.get(j)))
-                                .mapToObj(matches::get)
-                                .collect(Collectors.toCollection(HashSet::new))
-                ));
-
-        for (PointMatch a : result.keySet()) {
-            for (PointMatch b : result.get(a)) {
-                result.get(b).add(a);
-            }
+    /**
+     * Weights of matches, clique objective of best-first search is the sum of weights.
+     */
+    private double[] cliqueWeights(List<PointMatch> matches) {
+        switch (config.getCliqueObjective()) {
+            case "size":
+                double[] ones = new double[matches.size()];
+                Arrays.fill(ones, 1.0);
+                return ones;
+            case "correlation":
+                return matches.stream().mapToDouble(PointMatch::getCorrelation).toArray();
+            default:
+                throw new IllegalArgumentException("Unknown clique objective: " + config.getCliqueObjective());
         }
+    }
+
+    /**
+     * Graph over indices of matches, connecting geometrically compatible ones.
+     */
+    protected CompatibilityGraph constructGraph(List<PointMatch> matches) {
+        MatchPairIndex index = new MatchPairIndex(matches, MAX_DISTANCE_DELTA);
+        int[][] upper = index.upperNeighbours(receptorSurface, ligandSurface, MAX_ANGLE_DELTA);
+        long pairsCount = (long) matches.size() * (matches.size() - 1) / 2;
+        Logger.log("Match pair candidates: %d of %d pairs (%.2f%%)", index.candidatesCount.sum(), pairsCount,
+                100.0 * index.candidatesCount.sum() / Math.max(1, pairsCount));
+        return CompatibilityGraph.fromUpperNeighbours(upper);
+    }
 
 
+    protected List<PointMatch> findTopCorrelatedPairs(int count) {
+        return findTopCorrelatedPairs(count, (firstIndex, secondIndex) -> 0.0);
+    }
+
+    /**
+     * Finds {@code count} receptor and ligand point pairs with the highest spin image correlation
+     * plus {@code extraScore}.
+     */
+    protected List<PointMatch> findTopCorrelatedPairs(int count, PairScore extraScore) {
+        CorrelationScorer scorer = new CorrelationScorer(extraScore);
+
+        List<PointMatch> result;
+        switch (config.getPairSearch()) {
+            case "exact":
+                result = scorer.denseFirstStack != null ? findDenseTopPairs(scorer, count) : findExactTopPairs(scorer, count);
+                break;
+            case "lsh":
+                result = findLshTopPairs(scorer, count);
+                if (config.isReportRecall()) {
+                    reportRecall(result, scorer.denseFirstStack != null ? findDenseTopPairs(scorer, count) : findExactTopPairs(scorer, count));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pair search: " + config.getPairSearch());
+        }
+
+        scorer.logStatistics();
         return result;
     }
 
+    private List<PointMatch> findExactTopPairs(CorrelationScorer scorer, int count) {
+        int firstCount = scorer.firstStack.size();
+        int secondCount = scorer.secondStack.size();
+        int partsCount = Runtime.getRuntime().availableProcessors();
+        int partSize = (secondCount + partsCount - 1) / partsCount;
+        AtomicLong sharedBound = TopK.newSharedBound();
 
-    protected List<PointMatch> findTopCorrelatedPairs(int count) {
-        List<SpinImage> firstStack = computeSpinImageStack(receptorSurface);
-        Logger.log("Receptor spin image stack computed");
-        List<SpinImage> secondStack = computeSpinImageStack(ligandSurface);
-        Logger.log("Ligand spin image stack computed");
-
-        List<List<SpinImage>> partition = Lists.partition(secondStack, secondStack.size() / Runtime.getRuntime().availableProcessors());
-
-        List<PointMatch> result = partition.parallelStream()
-                .flatMap(part -> {
-                    Queue<PointMatch> queue = new PriorityQueue<>((o1, o2) -> Double.compare(o1.getCorrelation(), o2.getCorrelation()));
-                    for (SpinImage firstImage : firstStack) {
-                        for (SpinImage secondImage : part) {
-                            double correlation = firstImage.correlation(secondImage);
-                            if (queue.size() < count || queue.peek().correlation < correlation) {
-                                queue.add(new PointMatch(firstImage.getPointIndex(), secondImage.getPointIndex(), correlation));
-                            }
-                            if (queue.size() > count) {
-                                queue.poll();
-                            }
+        List<TopK> parts = IntStream.range(0, partsCount)
+                .parallel()
+                .mapToObj(part -> {
+                    int from = part * partSize;
+                    int to = Math.min(from + partSize, secondCount);
+                    TopK top = new TopK(count, sharedBound);
+                    for (int i = 0; i < firstCount; i++) {
+                        for (int j = from; j < to; j++) {
+                            top.offer(TopK.pack(i, j), scorer.score(i, j, top.threshold()));
                         }
                     }
-                    return queue.stream();
+                    return top;
                 })
                 .collect(Collectors.toList());
 
-        result.sort((o1, o2) -> -Double.compare(o1.correlation, o2.correlation));
-
-        return Lists.newArrayList(result.subList(0, count));
+        return selectTop(parts, count);
     }
 
-    private boolean isGoodPair(PointMatch firstMatch, PointMatch secondMatch) {
-        if (firstMatch.firstIndex == secondMatch.firstIndex || firstMatch.secondIndex == secondMatch.secondIndex) {
-            return false;
-        }
+    /**
+     * Exact search over normalized stacks, correlations are computed by receptor x ligand
+     * image tiles and every tile is offered to the top heap of its partition.
+     */
+    private List<PointMatch> findDenseTopPairs(CorrelationScorer scorer, int count) {
+        int firstCount = scorer.denseFirstStack.size();
+        int secondCount = scorer.denseSecondStack.size();
+        int partsCount = Runtime.getRuntime().availableProcessors();
+        int partSize = (secondCount + partsCount - 1) / partsCount;
+        AtomicLong sharedBound = TopK.newSharedBound();
+
+        List<TopK> parts = IntStream.range(0, partsCount)
+                .parallel()
+                .mapToObj(part -> {
+                    int from = part * partSize;
+                    int to = Math.min(from + partSize, secondCount);
+                    TopK top = new TopK(count, sharedBound);
+                    double[] tile = new double[DENSE_TILE_SIZE * DENSE_TILE_SIZE];
+                    for (int secondFrom = from; secondFrom < to; secondFrom += DENSE_TILE_SIZE) {
+                        int secondTo = Math.min(secondFrom + DENSE_TILE_SIZE, to);
+                        int width = secondTo - secondFrom;
+                        for (int firstFrom = 0; firstFrom < firstCount; firstFrom += DENSE_TILE_SIZE) {
+                            int firstTo = Math.min(firstFrom + DENSE_TILE_SIZE, firstCount);
+                            scorer.denseFirstStack.correlations(firstFrom, firstTo, scorer.denseSecondStack, secondFrom, secondTo, tile);
+                            for (int i = firstFrom; i < firstTo; i++) {
+                                int row = (i - firstFrom) * width;
+                                for (int j = secondFrom; j < secondTo; j++) {
+                                    top.offer(TopK.pack(i, j), tile[row + j - secondFrom] + scorer.extraScore.score(i, j));
+                                }
+                            }
+                        }
+                    }
+                    return top;
+                })
+                .collect(Collectors.toList());
 
-        double firstDistance = Geometry.distance(firstMatch.getFirstPoint(), secondMatch.getFirstPoint());
-        double secondDistance = Geometry.distance(firstMatch.getSecondPoint(), secondMatch.getSecondPoint());
-        double distDelta = Math.abs(firstDistance - secondDistance);
+        return selectTop(parts, count);
+    }
 
-        if (distDelta > 1.0) {
-            return false;
-        }
+    /**
+     * Scores only receptor images returned by LSH index for every ligand image.
+     */
+    private List<PointMatch> findLshTopPairs(CorrelationScorer scorer, int count) {
+        SpinImageLshIndex index = new SpinImageLshIndex(scorer.firstStack, config.getLshTables(), config.getLshBits(), 1);
+        Logger.log("LSH index for receptor spin images constructed");
 
-        //for angle between each surface point normals
-        double firstAngle = firstMatch.getFirstNormal().angle(secondMatch.getFirstNormal());
-        double secondAngle = firstMatch.getSecondNormal().angle(secondMatch.getSecondNormal());
-        double normalsAngleDelta = Math.abs(firstAngle - secondAngle);
+        int secondCount = scorer.secondStack.size();
+        int partsCount = Runtime.getRuntime().availableProcessors();
+        int partSize = (secondCount + partsCount - 1) / partsCount;
+        LongAdder candidatesCount = new LongAdder();
+        AtomicLong sharedBound = TopK.newSharedBound();
 
-        if (normalsAngleDelta > MAX_ANGLE_DELTA) {
-            return false;
-        }
+        List<TopK> parts = IntStream.range(0, partsCount)
+                .parallel()
+                .mapToObj(part -> {
+                    int from = part * partSize;
+                    int to = Math.min(from + partSize, secondCount);
+                    TopK top = new TopK(count, sharedBound);
+                    SpinImageLshIndex.Query query = index.newQuery();
+                    for (int j = from; j < to; j++) {
+                        int size = index.query(scorer.secondStack, j, query);
+                        candidatesCount.add(size);
+                        for (int position = 0; position < size; position++) {
+                            int i = query.get(position);
+                            top.offer(TopK.pack(i, j), scorer.score(i, j, top.threshold()));
+                        }
+                    }
+                    return top;
+                })
+                .collect(Collectors.toList());
+
+        long pairsCount = (long) scorer.firstStack.size() * secondCount;
+        Logger.log("LSH candidates: %d of %d pairs (%.2f%%)", candidatesCount.sum(), pairsCount, 100.0 * candidatesCount.sum() / pairsCount);
+        return selectTop(parts, count);
+    }
 
-        Vector firstLineVector = Geometry.vectorFromPoints(secondMatch.getFirstPoint(), firstMatch.getFirstPoint()).unite();
-        Vector secondLineVector = Geometry.vectorFromPoints(secondMatch.getSecondPoint(), firstMatch.getSecondPoint()).unite();
+    private void reportRecall(List<PointMatch> found, List<PointMatch> exact) {
+        Set<PointMatch> exactSet = new HashSet<>(exact);
+        long hits = found.stream().filter(exactSet::contains).count();
+        Logger.log("Pair search recall against exact top %d: %f", exact.size(), (double) hits / exact.size());
+    }
 
-        //for angle between line and first normal of pair
-        double firstStartLineAngle = firstMatch.getFirstNormal().angle(firstLineVector);
-        double secondStartLineAngle = firstMatch.getSecondNormal().angle(secondLineVector);
-        double startLineAngleDelta = Math.abs(Math.PI - firstStartLineAngle - secondStartLineAngle);
+    private List<PointMatch> selectTop(List<TopK> parts, int count) {
+        TopK top = TopK.merge(parts, count);
+        top.sortDescending();
 
-        if (startLineAngleDelta > MAX_ANGLE_DELTA) {
-            return false;
+        List<PointMatch> result = Lists.newArrayListWithCapacity(top.size());
+        for (int position = 0; position < top.size(); position++) {
+            long key = top.getKey(position);
+            result.add(new PointMatch(TopK.first(key), TopK.second(key), top.getScore(position)));
         }
+        return result;
+    }
 
-        //for angle between line and second normal of pair
-        double firstEndLineAngle = secondMatch.getFirstNormal().angle(firstLineVector);
-        double secondEndLineAngle = secondMatch.getSecondNormal().angle(secondLineVector);
-        double endLineAngleDelta = Math.abs(Math.PI - firstEndLineAngle - secondEndLineAngle);
+    protected SpinImageStack computeSpinImageStack(Surface surface, boolean flipped) {
+        return computeSpinImageStack(surface, config.getSpinImageBinSize(), flipped);
+    }
 
-        return endLineAngleDelta < MAX_ANGLE_DELTA;
+    protected SpinImageStack computeSpinImageStack(Surface surface, double binSize, boolean flipped) {
+        return cache.get(surface, config.getSpinImageRadius(), binSize, flipped);
     }
 
-    protected List<SpinImage> computeSpinImageStack(Surface surface) {
-        if (!cache.containsKey(surface.name)) {
-            cache.put(surface.name, IntStream.range(0, surface.points.size())
-                    .parallel()
-                    .mapToObj(i -> SpinImage.compute(i, surface, 6.0, 1.0))
-                    .collect(Collectors.toList()));
+    @FunctionalInterface
+    protected interface PairScore {
+        double score(int firstIndex, int secondIndex);
+    }
+
+    /**
+     * Spin image correlation of receptor and ligand points plus extra score.
+     * <p>
+     * If coarse bin size is configured, pairs are first compared by correlation of coarse spin images.
+     * Pairs whose coarse score plus margin does not reach current threshold are rejected without
+     * full resolution correlation. Dense correlation mode scores all pairs with full correlation
+     * and doesn't support coarse level and early abandon.
+     */
+    private class CorrelationScorer {
+        final SpinImageStack firstStack;
+        final SpinImageStack secondStack;
+        final SpinImageStack coarseFirstStack;
+        final SpinImageStack coarseSecondStack;
+        final double coarseMargin;
+        final NormalizedSpinImageStack denseFirstStack;
+        final NormalizedSpinImageStack denseSecondStack;
+        final PairScore extraScore;
+        final AbandonStatistics abandonStatistics;
+
+        final LongAdder coarseRejected = new LongAdder();
+        final LongAdder coarseChecked = new LongAdder();
+
+        CorrelationScorer(PairScore extraScore) {
+            this.extraScore = extraScore;
+            this.firstStack = computeSpinImageStack(receptorSurface, false);
+            Logger.log("Receptor spin image stack computed");
+            this.secondStack = computeSpinImageStack(ligandSurface, true);
+            Logger.log("Ligand spin image stack computed");
+
+            Double coarseBinSize = config.getCoarseSpinImageBinSize();
+            if (config.getCorrelationMode().equals("dense") && (coarseBinSize != null || config.isEarlyAbandon())) {
+                throw new IllegalArgumentException("Coarse level and early abandon are not supported in dense correlation mode");
+            }
+            if (config.isEarlyAbandon() && !config.getCorrelationBackend().equals("scalar")) {
+                throw new IllegalArgumentException("Early abandon is supported by scalar correlation backend only");
+            }
+            if (coarseBinSize != null) {
+                this.coarseFirstStack = computeSpinImageStack(receptorSurface, coarseBinSize, false);
+                this.coarseSecondStack = computeSpinImageStack(ligandSurface, coarseBinSize, true);
+                Logger.log("Coarse spin image stacks computed");
+            } else {
+                this.coarseFirstStack = null;
+                this.coarseSecondStack = null;
+            }
+            this.coarseMargin = config.getCoarseMargin();
+            this.abandonStatistics = config.isEarlyAbandon() ? new AbandonStatistics(firstStack.getRows()) : null;
+
+            switch (config.getCorrelationMode()) {
+                case "masked":
+                    this.denseFirstStack = null;
+                    this.denseSecondStack = null;
+                    break;
+                case "dense":
+                    this.denseFirstStack = NormalizedSpinImageStack.of(firstStack);
+                    this.denseSecondStack = NormalizedSpinImageStack.of(secondStack);
+                    Logger.log("Normalized spin image stacks computed");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown correlation mode: " + config.getCorrelationMode());
+            }
+        }
+
+        /**
+         * @return score of pair or negative infinity if pair is rejected on coarse level
+         * or its correlation is abandoned as not reaching threshold
+         */
+        double score(int i, int j, double threshold) {
+            double extra = extraScore.score(i, j);
+            if (denseFirstStack != null) {
+                return denseFirstStack.correlation(i, denseSecondStack, j) + extra;
+            }
+            if (coarseFirstStack != null && threshold != Double.NEGATIVE_INFINITY) {
+                coarseChecked.increment();
+                double coarse = correlationKernel.correlation(coarseFirstStack, i, coarseSecondStack, j);
+                if (coarse + extra + coarseMargin < threshold) {
+                    coarseRejected.increment();
+                    return Double.NEGATIVE_INFINITY;
+                }
+            }
+            if (abandonStatistics != null) {
+                return firstStack.correlation(i, secondStack, j, threshold - extra, abandonStatistics) + extra;
+            }
+            return correlationKernel.correlation(firstStack, i, secondStack, j) + extra;
+        }
+
+        void logStatistics() {
+            if (coarseFirstStack != null) {
+                Logger.log("Coarse level rejected %d of %d checked pairs", coarseRejected.sum(), coarseChecked.sum());
+            }
+            if (abandonStatistics != null) {
+                StringBuilder depths = new StringBuilder();
+                for (int row = 0; row < abandonStatistics.getRows(); row++) {
+                    depths.append(row == 0 ? "" : " ").append(abandonStatistics.getAbandoned(row));
+                }
+                Logger.log("Early abandoned %d correlations, %d completed, abandoned by scanned rows: [%s]",
+                        abandonStatistics.getAbandoned(), abandonStatistics.getCompleted(), depths);
+            }
         }
-        return cache.get(surface.name);
     }
 
     public class PointMatch {
@@ -260,7 +491,7 @@ public class GeometryDocker implements Docker {
             return correlation;
         }
 
-        PointMatch(int firstPointIndex, int secondPointIndex, double correlation) {
+        public PointMatch(int firstPointIndex, int secondPointIndex, double correlation) {
             this.firstIndex = firstPointIndex;
             this.secondIndex = secondPointIndex;
             this.correlation = correlation;
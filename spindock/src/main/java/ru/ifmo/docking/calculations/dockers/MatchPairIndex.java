@@ -0,0 +1,238 @@
+package ru.ifmo.docking.calculations.dockers;
+
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Buckets of point matches by cells of both receptor and ligand points, used to enumerate only
+ * match pairs whose receptor and ligand distances may differ by at most given tolerance.
+ * <p>
+ * Every bucket keeps bounding spheres of its receptor and ligand points. Distances between
+ * points of two buckets lie within sphere radii of distances between sphere centers, so the
+ * pair of buckets is skipped if these ranges are farther than tolerance. Fine buckets are
+ * nested in coarse ones of {@link #COARSE_FACTOR} times larger cells, fine buckets are tested
+ * only inside compatible coarse buckets.
+ */
+public class MatchPairIndex {
+    private static final double CELL_SIZE = 2.0;
+    private static final int COARSE_FACTOR = 4;
+    private static final double EPS = 1e-9;
+
+    private final List<GeometryDocker.PointMatch> matches;
+    private final double tolerance;
+    private final int[] items;
+    private final Spheres fine;
+    private final Spheres coarse;
+    private final int[] coarseFineStarts;
+    private final int[][] compatibleCoarse;
+
+    public final LongAdder candidatesCount = new LongAdder();
+
+    public MatchPairIndex(List<GeometryDocker.PointMatch> matches, double tolerance) {
+        this.matches = matches;
+        this.tolerance = tolerance;
+
+        double[] min = new double[6];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        for (GeometryDocker.PointMatch match : matches) {
+            double[] coordinates = coordinates(match);
+            for (int k = 0; k < 6; k++) {
+                min[k] = Math.min(min[k], coordinates[k]);
+            }
+        }
+
+        // coarse cells take 8 bits per coordinate, fine cells inside coarse ones take 2 bits
+        long[] keys = new long[matches.size()];
+        for (int i = 0; i < matches.size(); i++) {
+            double[] coordinates = coordinates(matches.get(i));
+            long coarseKey = 0;
+            long fineKey = 0;
+            for (int k = 0; k < 6; k++) {
+                int cell = (int) ((coordinates[k] - min[k]) / CELL_SIZE);
+                int coarseCell = cell / COARSE_FACTOR;
+                if (coarseCell > 0xff) {
+                    throw new IllegalArgumentException("Surfaces are too large for match buckets");
+                }
+                coarseKey = (coarseKey << 8) | coarseCell;
+                fineKey = (fineKey << 2) | (cell % COARSE_FACTOR);
+            }
+            keys[i] = (coarseKey << 12) | fineKey;
+        }
+
+        items = IntStream.range(0, matches.size())
+                .boxed()
+                .sorted((a, b) -> Long.compare(keys[a], keys[b]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        int fineCount = 0;
+        int coarseCount = 0;
+        for (int position = 0; position < items.length; position++) {
+            if (position == 0 || keys[items[position]] != keys[items[position - 1]]) {
+                fineCount++;
+            }
+            if (position == 0 || keys[items[position]] >>> 12 != keys[items[position - 1]] >>> 12) {
+                coarseCount++;
+            }
+        }
+
+        int[] fineStarts = new int[fineCount + 1];
+        int[] coarseStarts = new int[coarseCount + 1];
+        coarseFineStarts = new int[coarseCount + 1];
+        int fine = -1;
+        int coarse = -1;
+        for (int position = 0; position < items.length; position++) {
+            if (position == 0 || keys[items[position]] >>> 12 != keys[items[position - 1]] >>> 12) {
+                coarseStarts[++coarse] = position;
+                coarseFineStarts[coarse] = fine + 1;
+            }
+            if (position == 0 || keys[items[position]] != keys[items[position - 1]]) {
+                fineStarts[++fine] = position;
+            }
+        }
+        fineStarts[fineCount] = items.length;
+        coarseStarts[coarseCount] = items.length;
+        coarseFineStarts[coarseCount] = fineCount;
+
+        this.fine = new Spheres(matches, items, fineStarts);
+        this.coarse = new Spheres(matches, items, coarseStarts);
+
+        compatibleCoarse = new int[coarseCount][];
+        IntStream.range(0, coarseCount)
+                .parallel()
+                .forEach(c -> compatibleCoarse[c] = IntStream.range(0, this.coarse.count())
+                        .filter(other -> this.coarse.isCompatible(c, this.coarse, other, tolerance))
+                        .toArray());
+    }
+
+    private static double[] coordinates(GeometryDocker.PointMatch match) {
+        Point first = match.getFirstPoint();
+        Point second = match.getSecondPoint();
+        return new double[]{first.x, first.y, first.z, second.x, second.y, second.z};
+    }
+
+    /**
+     * Compatible neighbours of every match among candidates from compatible buckets. Every
+     * compatible pair is listed once, in the row of the match preceding in bucket order.
+     * <p>
+     * Matches are tested by kernel over arrays in bucket order, so candidates of every
+     * compatible bucket are one contiguous range.
+     */
+    public int[][] upperNeighbours(Surface receptor, Surface ligand, double maxAngleDelta) {
+        int[] firstIndices = new int[items.length];
+        int[] secondIndices = new int[items.length];
+        for (int position = 0; position < items.length; position++) {
+            firstIndices[position] = matches.get(items[position]).firstIndex;
+            secondIndices[position] = matches.get(items[position]).secondIndex;
+        }
+        MatchPairKernel kernel = new MatchPairKernel(receptor, ligand, firstIndices, secondIndices, items, tolerance, maxAngleDelta);
+
+        int[][] upper = new int[items.length][];
+        IntStream.range(0, coarse.count())
+                .parallel()
+                .forEach(c -> {
+                    int maxBucketsCount = 0;
+                    for (int other : compatibleCoarse[c]) {
+                        maxBucketsCount += coarseFineStarts[other + 1] - coarseFineStarts[other];
+                    }
+                    int[] candidateBuckets = new int[maxBucketsCount];
+                    for (int bucket = coarseFineStarts[c]; bucket < coarseFineStarts[c + 1]; bucket++) {
+                        int bucketsCount = 0;
+                        int rowCapacity = 0;
+                        for (int other : compatibleCoarse[c]) {
+                            for (int otherBucket = coarseFineStarts[other]; otherBucket < coarseFineStarts[other + 1]; otherBucket++) {
+                                if (otherBucket >= bucket && fine.isCompatible(bucket, fine, otherBucket, tolerance)) {
+                                    candidateBuckets[bucketsCount++] = otherBucket;
+                                    rowCapacity += fine.starts[otherBucket + 1] - fine.starts[otherBucket];
+                                }
+                            }
+                        }
+
+                        int[] row = new int[rowCapacity];
+                        long candidates = 0;
+                        for (int position = fine.starts[bucket]; position < fine.starts[bucket + 1]; position++) {
+                            int size = 0;
+                            for (int k = 0; k < bucketsCount; k++) {
+                                int otherBucket = candidateBuckets[k];
+                                int from = Math.max(fine.starts[otherBucket], position + 1);
+                                int to = fine.starts[otherBucket + 1];
+                                candidates += Math.max(0, to - from);
+                                size = kernel.collect(position, from, to, row, size);
+                            }
+                            for (int k = 0; k < size; k++) {
+                                row[k] = items[row[k]];
+                            }
+                            upper[items[position]] = Arrays.copyOf(row, size);
+                        }
+                        candidatesCount.add(candidates);
+                    }
+                });
+        return upper;
+    }
+
+    /**
+     * Bounding spheres of receptor and ligand points of consecutive ranges of sorted matches.
+     */
+    private static class Spheres {
+        final int[] starts;
+        final double[] centers;
+        final double[] radii;
+
+        Spheres(List<GeometryDocker.PointMatch> matches, int[] items, int[] starts) {
+            this.starts = starts;
+            int count = starts.length - 1;
+            this.centers = new double[count * 6];
+            this.radii = new double[count * 2];
+
+            for (int bucket = 0; bucket < count; bucket++) {
+                int size = starts[bucket + 1] - starts[bucket];
+                for (int position = starts[bucket]; position < starts[bucket + 1]; position++) {
+                    double[] coordinates = coordinates(matches.get(items[position]));
+                    for (int k = 0; k < 6; k++) {
+                        centers[bucket * 6 + k] += coordinates[k] / size;
+                    }
+                }
+                for (int position = starts[bucket]; position < starts[bucket + 1]; position++) {
+                    double[] coordinates = coordinates(matches.get(items[position]));
+                    for (int side = 0; side < 2; side++) {
+                        double distanceSqr = 0;
+                        for (int k = side * 3; k < side * 3 + 3; k++) {
+                            double delta = coordinates[k] - centers[bucket * 6 + k];
+                            distanceSqr += delta * delta;
+                        }
+                        radii[bucket * 2 + side] = Math.max(radii[bucket * 2 + side], Math.sqrt(distanceSqr));
+                    }
+                }
+            }
+        }
+
+        int count() {
+            return starts.length - 1;
+        }
+
+        /**
+         * Checks if receptor and ligand distances between some matches of two buckets
+         * may differ by at most tolerance.
+         */
+        boolean isCompatible(int bucket, Spheres that, int other, double tolerance) {
+            double firstDistance = distance(bucket, that, other, 0);
+            double secondDistance = distance(bucket, that, other, 3);
+            double slack = radii[bucket * 2] + that.radii[other * 2] + radii[bucket * 2 + 1] + that.radii[other * 2 + 1];
+            return Math.abs(firstDistance - secondDistance) <= tolerance + slack + EPS;
+        }
+
+        private double distance(int bucket, Spheres that, int other, int from) {
+            double distanceSqr = 0;
+            for (int k = from; k < from + 3; k++) {
+                double delta = centers[bucket * 6 + k] - that.centers[other * 6 + k];
+                distanceSqr += delta * delta;
+            }
+            return Math.sqrt(distanceSqr);
+        }
+    }
+}
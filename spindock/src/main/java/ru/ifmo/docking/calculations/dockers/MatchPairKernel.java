@@ -0,0 +1,252 @@
+package ru.ifmo.docking.calculations.dockers;
+
+import org.apache.commons.math3.util.FastMath;
+import ru.ifmo.docking.geometry.Geometry;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.Vector;
+import ru.ifmo.docking.model.Surface;
+
+/**
+ * Geometric compatibility of point matches kept as structure of arrays: coordinates and
+ * normals of receptor and ligand points of every match are stored in separate primitive
+ * arrays, so one match is tested against a range of others without allocations.
+ * <p>
+ * Angle deltas are compared by cosines instead of angles: for angles a, b in [0, pi]
+ * {@code |a - b| <= delta} iff {@code cos(a) cos(b) + sin(a) sin(b) >= cos(delta)} and
+ * {@code |pi - a - b| <= delta} iff {@code sin(a) sin(b) - cos(a) cos(b) >= cos(delta)},
+ * where sines are {@code sqrt(1 - cos^2)}. Pairs with these values closer than
+ * {@link #BAND} to the threshold or with almost parallel vectors are resolved by
+ * {@link #isCompatibleExact}, so the result always equals the exact predicate.
+ */
+public class MatchPairKernel {
+    private static final double BAND = 1e-8;
+    private static final double MAX_COS = 1 - 1e-12;
+
+    private final double maxDistanceDelta;
+    private final double maxAngleDelta;
+    private final double cosMaxAngleDelta;
+
+    private final Surface receptor;
+    private final Surface ligand;
+    private final int[] firstIndices;
+    private final int[] secondIndices;
+    private final int[] ids;
+
+    private final double[] firstX;
+    private final double[] firstY;
+    private final double[] firstZ;
+    private final double[] firstNormalX;
+    private final double[] firstNormalY;
+    private final double[] firstNormalZ;
+    private final double[] firstNormalInverseLength;
+    private final double[] secondX;
+    private final double[] secondY;
+    private final double[] secondZ;
+    private final double[] secondNormalX;
+    private final double[] secondNormalY;
+    private final double[] secondNormalZ;
+    private final double[] secondNormalInverseLength;
+
+    /**
+     * @param firstIndices  receptor point index of every match
+     * @param secondIndices ligand point index of every match
+     * @param ids           order of matches: pair is tested exactly with the match of smaller id first
+     */
+    public MatchPairKernel(Surface receptor,
+                           Surface ligand,
+                           int[] firstIndices,
+                           int[] secondIndices,
+                           int[] ids,
+                           double maxDistanceDelta,
+                           double maxAngleDelta) {
+
+        this.receptor = receptor;
+        this.ligand = ligand;
+        this.firstIndices = firstIndices;
+        this.secondIndices = secondIndices;
+        this.ids = ids;
+        this.maxDistanceDelta = maxDistanceDelta;
+        this.maxAngleDelta = maxAngleDelta;
+        this.cosMaxAngleDelta = Math.cos(maxAngleDelta);
+
+        int size = firstIndices.length;
+        firstX = new double[size];
+        firstY = new double[size];
+        firstZ = new double[size];
+        firstNormalX = new double[size];
+        firstNormalY = new double[size];
+        firstNormalZ = new double[size];
+        firstNormalInverseLength = new double[size];
+        secondX = new double[size];
+        secondY = new double[size];
+        secondZ = new double[size];
+        secondNormalX = new double[size];
+        secondNormalY = new double[size];
+        secondNormalZ = new double[size];
+        secondNormalInverseLength = new double[size];
+
+        for (int i = 0; i < size; i++) {
+            Point first = receptor.points.get(firstIndices[i]);
+            Vector firstNormal = receptor.normals.get(firstIndices[i]);
+            Point second = ligand.points.get(secondIndices[i]);
+            Vector secondNormal = ligand.normals.get(secondIndices[i]);
+
+            firstX[i] = first.x;
+            firstY[i] = first.y;
+            firstZ[i] = first.z;
+            firstNormalX[i] = firstNormal.x;
+            firstNormalY[i] = firstNormal.y;
+            firstNormalZ[i] = firstNormal.z;
+            firstNormalInverseLength[i] = 1 / firstNormal.length();
+            secondX[i] = second.x;
+            secondY[i] = second.y;
+            secondZ[i] = second.z;
+            secondNormalX[i] = secondNormal.x;
+            secondNormalY[i] = secondNormal.y;
+            secondNormalZ[i] = secondNormal.z;
+            secondNormalInverseLength[i] = 1 / secondNormal.length();
+        }
+    }
+
+    public int size() {
+        return firstIndices.length;
+    }
+
+    /**
+     * Appends matches of range [from, to) compatible with match i to {@code out} starting
+     * at {@code size}.
+     *
+     * @return new size of {@code out}
+     */
+    public int collect(int i, int from, int to, int[] out, int size) {
+        int firstIndex = firstIndices[i];
+        int secondIndex = secondIndices[i];
+        double x1 = firstX[i];
+        double y1 = firstY[i];
+        double z1 = firstZ[i];
+        double nx1 = firstNormalX[i];
+        double ny1 = firstNormalY[i];
+        double nz1 = firstNormalZ[i];
+        double nl1 = firstNormalInverseLength[i];
+        double x2 = secondX[i];
+        double y2 = secondY[i];
+        double z2 = secondZ[i];
+        double nx2 = secondNormalX[i];
+        double ny2 = secondNormalY[i];
+        double nz2 = secondNormalZ[i];
+        double nl2 = secondNormalInverseLength[i];
+
+        for (int j = from; j < to; j++) {
+            // same arithmetic as Geometry.distance, so distance test is exact
+            double dx1 = x1 - firstX[j];
+            double dy1 = y1 - firstY[j];
+            double dz1 = z1 - firstZ[j];
+            double dx2 = x2 - secondX[j];
+            double dy2 = y2 - secondY[j];
+            double dz2 = z2 - secondZ[j];
+            double firstDistance = FastMath.sqrt(dx1 * dx1 + dy1 * dy1 + dz1 * dz1);
+            double secondDistance = FastMath.sqrt(dx2 * dx2 + dy2 * dy2 + dz2 * dz2);
+            if (Math.abs(firstDistance - secondDistance) > maxDistanceDelta
+                    || firstIndices[j] == firstIndex || secondIndices[j] == secondIndex) {
+                continue;
+            }
+
+            double nx3 = firstNormalX[j];
+            double ny3 = firstNormalY[j];
+            double nz3 = firstNormalZ[j];
+            double nl3 = firstNormalInverseLength[j];
+            double nx4 = secondNormalX[j];
+            double ny4 = secondNormalY[j];
+            double nz4 = secondNormalZ[j];
+            double nl4 = secondNormalInverseLength[j];
+            double ll1 = 1 / firstDistance;
+            double ll2 = 1 / secondDistance;
+
+            double normalsCos1 = (nx1 * nx3 + ny1 * ny3 + nz1 * nz3) * nl1 * nl3;
+            double normalsCos2 = (nx2 * nx4 + ny2 * ny4 + nz2 * nz4) * nl2 * nl4;
+            double startCos1 = (nx1 * dx1 + ny1 * dy1 + nz1 * dz1) * nl1 * ll1;
+            double startCos2 = (nx2 * dx2 + ny2 * dy2 + nz2 * dz2) * nl2 * ll2;
+            double endCos1 = (nx3 * dx1 + ny3 * dy1 + nz3 * dz1) * nl3 * ll1;
+            double endCos2 = (nx4 * dx2 + ny4 * dy2 + nz4 * dz2) * nl4 * ll2;
+
+            boolean regular = Math.abs(normalsCos1) < MAX_COS && Math.abs(normalsCos2) < MAX_COS
+                    && Math.abs(startCos1) < MAX_COS && Math.abs(startCos2) < MAX_COS
+                    && Math.abs(endCos1) < MAX_COS && Math.abs(endCos2) < MAX_COS;
+
+            double normals = normalsCos1 * normalsCos2 + sin(normalsCos1) * sin(normalsCos2);
+            double start = sin(startCos1) * sin(startCos2) - startCos1 * startCos2;
+            double end = sin(endCos1) * sin(endCos2) - endCos1 * endCos2;
+
+            boolean compatible;
+            if (regular && (normals < cosMaxAngleDelta - BAND || start < cosMaxAngleDelta - BAND || end < cosMaxAngleDelta - BAND)) {
+                compatible = false;
+            } else if (regular && normals > cosMaxAngleDelta + BAND && start > cosMaxAngleDelta + BAND && end > cosMaxAngleDelta + BAND) {
+                compatible = true;
+            } else {
+                compatible = ids[i] < ids[j] ? isCompatibleExact(i, j) : isCompatibleExact(j, i);
+            }
+            if (compatible) {
+                out[size++] = j;
+            }
+        }
+        return size;
+    }
+
+    private static double sin(double cos) {
+        return Math.sqrt(Math.max(0, 1 - cos * cos));
+    }
+
+    /**
+     * Compatibility of two matches with first match i, tested with angles between vectors.
+     */
+    public boolean isCompatibleExact(int i, int j) {
+        if (firstIndices[i] == firstIndices[j] || secondIndices[i] == secondIndices[j]) {
+            return false;
+        }
+
+        Point firstPoint1 = receptor.points.get(firstIndices[i]);
+        Point firstPoint2 = receptor.points.get(firstIndices[j]);
+        Point secondPoint1 = ligand.points.get(secondIndices[i]);
+        Point secondPoint2 = ligand.points.get(secondIndices[j]);
+        Vector firstNormal1 = receptor.normals.get(firstIndices[i]);
+        Vector firstNormal2 = receptor.normals.get(firstIndices[j]);
+        Vector secondNormal1 = ligand.normals.get(secondIndices[i]);
+        Vector secondNormal2 = ligand.normals.get(secondIndices[j]);
+
+        double firstDistance = Geometry.distance(firstPoint1, firstPoint2);
+        double secondDistance = Geometry.distance(secondPoint1, secondPoint2);
+        double distDelta = Math.abs(firstDistance - secondDistance);
+
+        if (distDelta > maxDistanceDelta) {
+            return false;
+        }
+
+        //for angle between each surface point normals
+        double firstAngle = firstNormal1.angle(firstNormal2);
+        double secondAngle = secondNormal1.angle(secondNormal2);
+        double normalsAngleDelta = Math.abs(firstAngle - secondAngle);
+
+        if (normalsAngleDelta > maxAngleDelta) {
+            return false;
+        }
+
+        Vector firstLineVector = Geometry.vectorFromPoints(firstPoint2, firstPoint1).unite();
+        Vector secondLineVector = Geometry.vectorFromPoints(secondPoint2, secondPoint1).unite();
+
+        //for angle between line and first normal of pair
+        double firstStartLineAngle = firstNormal1.angle(firstLineVector);
+        double secondStartLineAngle = secondNormal1.angle(secondLineVector);
+        double startLineAngleDelta = Math.abs(Math.PI - firstStartLineAngle - secondStartLineAngle);
+
+        if (startLineAngleDelta > maxAngleDelta) {
+            return false;
+        }
+
+        //for angle between line and second normal of pair
+        double firstEndLineAngle = firstNormal2.angle(firstLineVector);
+        double secondEndLineAngle = secondNormal2.angle(secondLineVector);
+        double endLineAngleDelta = Math.abs(Math.PI - firstEndLineAngle - secondEndLineAngle);
+
+        return endLineAngleDelta < maxAngleDelta;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ifmo.docking.calculations.dockers;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import ru.ifmo.docking.geometry.DistanceGrid;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.model.Surface;
+
+import java.util.List;
+
+/**
+ * Scores ligand poses by distances of ligand points to receptor surface.
+ * <p>
+ * Ligand coordinates are kept in a primitive array and every point is transformed right before
+ * its grid lookup with the same arithmetic as {@link ru.ifmo.docking.geometry.Geometry#transformPoint},
+ * so scoring a transition allocates nothing and equals scoring of the transformed surface.
+ */
+public class PoseScorer {
+    private final DistanceGrid grid;
+    private final double[] coordinates;
+
+    public PoseScorer(DistanceGrid grid, Surface ligand) {
+        this.grid = grid;
+        this.coordinates = new double[ligand.points.size() * 3];
+        for (int i = 0; i < ligand.points.size(); i++) {
+            Point point = ligand.points.get(i);
+            coordinates[i * 3] = point.x;
+            coordinates[i * 3 + 1] = point.y;
+            coordinates[i * 3 + 2] = point.z;
+        }
+    }
+
+    /**
+     * Score of ligand transformed by transition, see {@link #score(DistanceGrid, Surface)}.
+     */
+    public double score(RealMatrix transition) {
+        double m00 = transition.getEntry(0, 0), m01 = transition.getEntry(0, 1), m02 = transition.getEntry(0, 2), m03 = transition.getEntry(0, 3);
+        double m10 = transition.getEntry(1, 0), m11 = transition.getEntry(1, 1), m12 = transition.getEntry(1, 2), m13 = transition.getEntry(1, 3);
+        double m20 = transition.getEntry(2, 0), m21 = transition.getEntry(2, 1), m22 = transition.getEntry(2, 2), m23 = transition.getEntry(2, 3);
+        double m30 = transition.getEntry(3, 0), m31 = transition.getEntry(3, 1), m32 = transition.getEntry(3, 2), m33 = transition.getEntry(3, 3);
+
+        int bin0 = 0;
+        int bin1 = 0;
+        int bin2 = 0;
+        int bin3 = 0;
+        for (int i = 0; i < coordinates.length; i += 3) {
+            double x = coordinates[i];
+            double y = coordinates[i + 1];
+            double z = coordinates[i + 2];
+            double w = x * m03 + y * m13 + z * m23 + m33;
+            double d = grid.getDistanceForPoint(
+                    (x * m00 + y * m10 + z * m20 + m30) / w,
+                    (x * m01 + y * m11 + z * m21 + m31) / w,
+                    (x * m02 + y * m12 + z * m22 + m32) / w);
+            if (d < -5.0) {
+                return Double.NEGATIVE_INFINITY;
+            } else if (d < -3.5) {
+                bin0 += 1;
+            } else if (d < -2.0) {
+                bin1 += 1;
+            } else if (d < -1.0) {
+                bin2 += 1;
+            } else if (d < 1.0) {
+                bin3 += 1;
+            }
+        }
+        return score(bin0, bin1, bin2, bin3, coordinates.length / 3);
+    }
+
+    /**
+     * Score of transformed ligand surface: points deeper than 5 under receptor surface reject
+     * the pose, as do too many points close to the surface, otherwise points within 1 of the
+     * surface are rewarded and deeper points are penalized.
+     */
+    public static double score(DistanceGrid grid, Surface transformedSecond) {
+        int bins[] = new int[4];
+        List<Point> points = transformedSecond.points;
+        for (Point point : points) {
+            double d = grid.getDistanceForPoint(point);
+            if (d < -5.0) {
+                return Double.NEGATIVE_INFINITY;
+            } else if (d < -3.5) {
+                bins[0] += 1;
+            } else if (d < -2.0) {
+                bins[1] += 1;
+            } else if (d < -1.0) {
+                bins[2] += 1;
+            } else if (d < 1.0) {
+                bins[3] += 1;
+            }
+        }
+        return score(bins[0], bins[1], bins[2], bins[3], points.size());
+    }
+
+    private static double score(int bin0, int bin1, int bin2, int bin3, int pointsCount) {
+        if ((bin3 + bin2 + bin1 + bin0) > pointsCount * 0.4) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return (bin3 - bin2 - bin1 * 2.5 - bin0 * 5);
+    }
+}
@@ -0,0 +1,147 @@
+package ru.ifmo.docking.calculations.dockers;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import ru.ifmo.docking.geometry.Geometry;
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.util.Logger;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Collapses cliques with nearly the same ligand transition before scoring.
+ * <p>
+ * Transition of every clique is binned on a lattice: rotation is taken as unit quaternion with
+ * non-negative scalar part, its components are binned with step of half the bin angle, which
+ * is about the rotation angle between quaternions, and the transformed ligand center is binned
+ * with the shift step. Only one clique per bin is kept: the largest one, ties are resolved to
+ * the higher sum of match correlations. Bins are packed to 9 bits per coordinate, so centers
+ * further than 512 shift steps apart may share a bin.
+ * <p>
+ * Transitions of kept cliques are passed on, so they are not found again for scoring. Nothing
+ * is passed on before enumeration finishes, so scoring doesn't overlap enumeration.
+ */
+public class TransitionDeduplicator implements Consumer<List<GeometryDocker.PointMatch>> {
+    private static final int BITS = 9;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final Point ligandCenter;
+    private final double quaternionStep;
+    private final double shiftStep;
+    private final ConcurrentMap<Long, Representative> representatives = new ConcurrentHashMap<>();
+    private final LongAdder cliquesCount = new LongAdder();
+
+    /**
+     * @param angle rotation bin size in radians
+     * @param shift translation bin size in angstroms
+     */
+    public TransitionDeduplicator(Point ligandCenter, double angle, double shift) {
+        if (!(angle > 4.0 / MASK) || !(shift > 0)) {
+            throw new IllegalArgumentException("Bad transition bin size: angle " + angle + ", shift " + shift);
+        }
+        this.ligandCenter = ligandCenter;
+        this.quaternionStep = angle / 2;
+        this.shiftStep = shift;
+    }
+
+    @Override
+    public void accept(List<GeometryDocker.PointMatch> clique) {
+        cliquesCount.increment();
+        Representative candidate = new Representative(clique, GeometryDocker.findTransition(clique));
+        representatives.merge(binOf(candidate.transition), candidate,
+                (current, other) -> other.isBetterThan(current) ? other : current);
+    }
+
+    /**
+     * Passes transitions of kept cliques to sink and logs how many cliques were collapsed.
+     */
+    void drainTo(Consumer<RealMatrix> sink) {
+        Logger.log("Transition deduplication: %d cliques collapsed to %d", cliquesCount.sum(), representatives.size());
+        for (Representative representative : representatives.values()) {
+            sink.accept(representative.transition);
+        }
+        representatives.clear();
+    }
+
+    public long binOf(RealMatrix transition) {
+        // points are rows multiplied by transition, so the rotation is its transposed upper left block
+        double m00 = transition.getEntry(0, 0), m01 = transition.getEntry(1, 0), m02 = transition.getEntry(2, 0);
+        double m10 = transition.getEntry(0, 1), m11 = transition.getEntry(1, 1), m12 = transition.getEntry(2, 1);
+        double m20 = transition.getEntry(0, 2), m21 = transition.getEntry(1, 2), m22 = transition.getEntry(2, 2);
+
+        double w, x, y, z;
+        double trace = m00 + m11 + m22;
+        if (trace > 0) {
+            double s = 2 * Math.sqrt(trace + 1);
+            w = s / 4;
+            x = (m21 - m12) / s;
+            y = (m02 - m20) / s;
+            z = (m10 - m01) / s;
+        } else if (m00 > m11 && m00 > m22) {
+            double s = 2 * Math.sqrt(1 + m00 - m11 - m22);
+            w = (m21 - m12) / s;
+            x = s / 4;
+            y = (m01 + m10) / s;
+            z = (m02 + m20) / s;
+        } else if (m11 > m22) {
+            double s = 2 * Math.sqrt(1 + m11 - m00 - m22);
+            w = (m02 - m20) / s;
+            x = (m01 + m10) / s;
+            y = s / 4;
+            z = (m12 + m21) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + m22 - m00 - m11);
+            w = (m10 - m01) / s;
+            x = (m02 + m20) / s;
+            y = (m12 + m21) / s;
+            z = s / 4;
+        }
+        if (w < 0) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+
+        Point center = Geometry.transformPoint(ligandCenter, transition);
+        long key = 0;
+        key = (key << BITS) | bin(w, quaternionStep);
+        key = (key << BITS) | bin(x, quaternionStep);
+        key = (key << BITS) | bin(y, quaternionStep);
+        key = (key << BITS) | bin(z, quaternionStep);
+        key = (key << BITS) | bin(center.x, shiftStep);
+        key = (key << BITS) | bin(center.y, shiftStep);
+        key = (key << BITS) | bin(center.z, shiftStep);
+        return key;
+    }
+
+    private static long bin(double value, double step) {
+        return (long) Math.floor(value / step) & MASK;
+    }
+
+    private static class Representative {
+        final List<GeometryDocker.PointMatch> clique;
+        final RealMatrix transition;
+        final double correlation;
+
+        Representative(List<GeometryDocker.PointMatch> clique, RealMatrix transition) {
+            this.clique = clique;
+            this.transition = transition;
+            double correlation = 0;
+            for (GeometryDocker.PointMatch match : clique) {
+                correlation += match.getCorrelation();
+            }
+            this.correlation = correlation;
+        }
+
+        boolean isBetterThan(Representative other) {
+            if (clique.size() != other.clique.size()) {
+                return clique.size() > other.clique.size();
+            }
+            return correlation > other.correlation;
+        }
+    }
+}
@@ -86,6 +86,217 @@ public class ConsoleRunner {
                         .build()
         );
 
+        options.addOption(
+                Option.builder("cb")
+                        .longOpt("correlation-backend")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Spin image correlation backend: scalar (default) or vector. " +
+                                "Vector backend requires --add-modules jdk.incubator.vector JVM option")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("sc")
+                        .longOpt("spin-image-cache")
+                        .hasArg()
+                        .argName("dir")
+                        .desc("Directory for persistent spin image stacks cache")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("spin-radius")
+                        .hasArg()
+                        .argName("angstroms")
+                        .desc("Spin image support radius, 6.0 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("spin-bin-size")
+                        .hasArg()
+                        .argName("angstroms")
+                        .desc("Spin image bin size, 1.0 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("coarse-bin-size")
+                        .hasArg()
+                        .argName("angstroms")
+                        .desc("Bin size of coarse spin images used to reject pairs before full resolution correlation " +
+                                "(e.g. 2.0). Coarse level is disabled by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("coarse-margin")
+                        .hasArg()
+                        .argName("value")
+                        .desc("Pair is rejected if its coarse correlation plus margin is below current top pairs bound, " +
+                                "0.2 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("cm")
+                        .longOpt("correlation-mode")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Spin image correlation: masked (default) skips bins empty in both images, " +
+                                "dense correlates normalized images over all bins as tiled dot products, " +
+                                "without coarse level and early abandon")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("early-abandon")
+                        .desc("Stop correlation of a pair as soon as its row by row upper bound is below current top pairs bound, " +
+                                "scalar correlation backend only")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("ps")
+                        .longOpt("pair-search")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Top correlated vertex pairs search: exact (default) or lsh")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("lsh-tables")
+                        .hasArg()
+                        .argName("count")
+                        .desc("LSH hash tables count, 16 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("lsh-bits")
+                        .hasArg()
+                        .argName("count")
+                        .desc("LSH key bits per table, 12 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("report-recall")
+                        .desc("Also run exact pair search and report recall of the approximate one")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder("cs")
+                        .longOpt("clique-search")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Clique search: tomita (default) enumerates all maximal cliques, " +
+                                "degeneracy enumerates them from every vertex in degeneracy order, " +
+                                "best-first finds only top cliques by objective with branch and bound")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("clique-objective")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Objective of best-first clique search: size (default) or correlation, " +
+                                "the sum of correlations of clique matches")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("top-cliques")
+                        .hasArg()
+                        .argName("count")
+                        .desc("Cliques count found by best-first clique search, 3000 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("clique-threads")
+                        .hasArg()
+                        .argName("count")
+                        .desc("Parallelism of clique search pool, available processors by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("scoring-threads")
+                        .hasArg()
+                        .argName("count")
+                        .desc("Threads scoring cliques during clique search, available processors less clique threads (at least one) by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("dedup-transitions")
+                        .desc("Score only one clique per bin of ligand transitions, the largest one; scoring starts after clique search")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("dedup-angle")
+                        .hasArg()
+                        .argName("degrees")
+                        .desc("Rotation bin size of transition deduplication, 5 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("dedup-shift")
+                        .hasArg()
+                        .argName("angstroms")
+                        .desc("Ligand center bin size of transition deduplication, 1.0 by default")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("grid-storage")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Receptor distance grid storage: double (default), float, fixed16 " +
+                                "with 16-bit distances clamped to 12 angstroms or sparse with only " +
+                                "8x8x8 bricks near surface")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("grid-interpolation")
+                        .desc("Interpolate receptor distance grid trilinearly instead of taking the nearest cell")
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt("grid-construction")
+                        .hasArg()
+                        .argName("name")
+                        .desc("Receptor distance grid construction: cube (default) from every surface point to " +
+                                "cells around it or edt with linear time distance transform over the grid")
+                        .build()
+        );
+
         return options;
     }
 
@@ -27,4 +27,100 @@ public class RunConfig {
         return cmd.getOptionValue("ls");
     }
 
+    public String getCorrelationBackend() {
+        return cmd.getOptionValue("cb", "scalar");
+    }
+
+    public String getSpinImageCacheDir() {
+        return cmd.getOptionValue("sc");
+    }
+
+    public double getSpinImageRadius() {
+        return Double.parseDouble(cmd.getOptionValue("spin-radius", "6.0"));
+    }
+
+    public double getSpinImageBinSize() {
+        return Double.parseDouble(cmd.getOptionValue("spin-bin-size", "1.0"));
+    }
+
+    /**
+     * @return coarse spin images bin size or null if coarse level is disabled
+     */
+    public Double getCoarseSpinImageBinSize() {
+        return cmd.hasOption("coarse-bin-size") ? Double.parseDouble(cmd.getOptionValue("coarse-bin-size")) : null;
+    }
+
+    public double getCoarseMargin() {
+        return Double.parseDouble(cmd.getOptionValue("coarse-margin", "0.2"));
+    }
+
+    public String getCorrelationMode() {
+        return cmd.getOptionValue("cm", "masked");
+    }
+
+    public boolean isEarlyAbandon() {
+        return cmd.hasOption("early-abandon");
+    }
+
+    public String getPairSearch() {
+        return cmd.getOptionValue("ps", "exact");
+    }
+
+    public int getLshTables() {
+        return Integer.parseInt(cmd.getOptionValue("lsh-tables", "16"));
+    }
+
+    public int getLshBits() {
+        return Integer.parseInt(cmd.getOptionValue("lsh-bits", "12"));
+    }
+
+    public boolean isReportRecall() {
+        return cmd.hasOption("report-recall");
+    }
+
+    public String getCliqueSearch() {
+        return cmd.getOptionValue("cs", "tomita");
+    }
+
+    public String getCliqueObjective() {
+        return cmd.getOptionValue("clique-objective", "size");
+    }
+
+    public int getTopCliquesCount() {
+        return Integer.parseInt(cmd.getOptionValue("top-cliques", "3000"));
+    }
+
+    public int getCliqueThreads() {
+        return Integer.parseInt(cmd.getOptionValue("clique-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+    }
+
+    public int getScoringThreads() {
+        int defaultCount = Math.max(1, Runtime.getRuntime().availableProcessors() - getCliqueThreads());
+        return Integer.parseInt(cmd.getOptionValue("scoring-threads", String.valueOf(defaultCount)));
+    }
+
+    public boolean isDeduplicateTransitions() {
+        return cmd.hasOption("dedup-transitions");
+    }
+
+    public double getDedupAngle() {
+        return Double.parseDouble(cmd.getOptionValue("dedup-angle", "5"));
+    }
+
+    public double getDedupShift() {
+        return Double.parseDouble(cmd.getOptionValue("dedup-shift", "1.0"));
+    }
+
+    public String getGridStorage() {
+        return cmd.getOptionValue("grid-storage", "double");
+    }
+
+    public boolean isGridInterpolation() {
+        return cmd.hasOption("grid-interpolation");
+    }
+
+    public String getGridConstruction() {
+        return cmd.getOptionValue("grid-construction", "cube");
+    }
+
 }
\ No newline at end of file
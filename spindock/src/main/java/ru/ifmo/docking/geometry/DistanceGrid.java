@@ -1,19 +1,26 @@
 package ru.ifmo.docking.geometry;
 
-import com.google.common.collect.Lists;
 import org.apache.commons.math3.util.FastMath;
 import ru.ifmo.docking.model.Surface;
 import ru.ifmo.docking.util.Logger;
-import ru.ifmo.docking.util.Pair;
 
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.IntStream;
 
+/**
+ * Signed distances to surface in cells of a regular grid around it, negative on the inner side
+ * of surface normals. Only cells within 12 of surface points get distances.
+ * <p>
+ * Cell values are kept in {@link DistanceStorage} chosen by name, distances are merged in
+ * double precision and only the final values are stored, so quantization doesn't change which
+ * surface point is the nearest. With interpolation a point gets trilinear interpolation of the
+ * 8 surrounding cells, or the nearest cell value if some of them are empty.
+ */
 public class DistanceGrid {
 
-    final double[] distances;
+    final DistanceStorage distances;
+    final boolean interpolation;
     final Point minBound;
     final Point maxBound;
 
@@ -24,11 +31,25 @@ public class DistanceGrid {
 
 
     public DistanceGrid(Surface surface, double step, double margin) {
-        int surfacePointsCount = surface.points.size();
+        this(surface, step, margin, "double", false);
+    }
+
+    public DistanceGrid(Surface surface, double step, double margin, String storage, boolean interpolation) {
+        this(surface, step, margin, storage, interpolation, "cube");
+    }
+
+    /**
+     * @param storage      name of {@link DistanceStorage}: double, float, fixed16 or sparse
+     * @param construction "cube" to compute distances from every surface point to the cells of
+     *                     the cube around it, "edt" to find the nearest surface point of every
+     *                     cell by distance transform
+     */
+    public DistanceGrid(Surface surface, double step, double margin, String storage, boolean interpolation, String construction) {
         Logger.log("Grid construction for surface %s started", surface.name);
-        Logger.log("Surface points count: %d", surfacePointsCount);
+        Logger.log("Surface points count: %d", surface.points.size());
 
         this.step = step;
+        this.interpolation = interpolation;
         this.minBound = findMinBound(surface, margin);
         this.maxBound = findMaxBound(surface, margin);
 
@@ -41,44 +62,21 @@ public class DistanceGrid {
 
         Logger.log("XRes: %d YRes: %d ZRes: %d", xRes, yRes, zRes);
 
-        distances = new double[(xRes + 1) * (yRes + 1) * (zRes + 1)];
-        Logger.log("Total grid points count: %d", distances.length);
-
-        Arrays.fill(distances, Double.MAX_VALUE);
-
-        int groupSize = surfacePointsCount / Runtime.getRuntime().availableProcessors();
-        if (distances.length > 100000000) {
-            groupSize = surfacePointsCount / (Runtime.getRuntime().availableProcessors() / 2);
-        }
-
-        List<Pair<Integer, Integer>> groups = Lists.newArrayList();
-        int k = 0;
-        while (k < surfacePointsCount) {
-            groups.add(Pair.of(k, Math.min(k + groupSize, surfacePointsCount)));
-            k += groupSize;
-        }
-
-        List<double[]> groupsResults = groups.parallelStream()
-                .map(groupPoints -> {
-                    double[] groupDistances = new double[distances.length];
-                    Arrays.fill(groupDistances, Double.MAX_VALUE);
-                    IntStream.range(groupPoints.first, groupPoints.second)
-                            .forEach(i -> {
-                                Point p = surface.points.get(i);
-                                Vector n = surface.normals.get(i);
-                                processSurfacePoint(p, n, groupDistances);
-                            });
-                    return groupDistances;
-                })
-                .collect(Collectors.toList());
-
-        for (double[] groupsResult : groupsResults) {
-            for (int i = 0; i < groupsResult.length; i++) {
-                if (Math.abs(distances[i]) > Math.abs(groupsResult[i])) {
-                    distances[i] = groupsResult[i];
-                }
-            }
+        long cellsCount = (long) (xRes + 1) * (yRes + 1) * (zRes + 1);
+        Logger.log("Total grid points count: %d", cellsCount);
+
+        distances = DistanceStorage.forName(storage, xRes + 1, yRes + 1, zRes + 1);
+        switch (construction) {
+            case "cube":
+                buildByCubes(surface);
+                break;
+            case "edt":
+                buildByDistanceTransform(surface);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown distance grid construction: " + construction);
         }
+        Logger.log("Distance grid storage: %s, %d MB", storage, distances.bytesCount() >> 20);
 
         Logger.log("Finished processing surface points");
 
@@ -98,25 +96,385 @@ public class DistanceGrid {
 //        System.out.println("Finished processing grid points");
     }
 
+    /**
+     * Every surface point sets distances in the cube of 12 around it. The grid is split into z
+     * slabs of whole bricks processed in parallel, every slab by the points whose cubes intersect
+     * it, in the order of points. Distances of a slab are merged in its own double array and then
+     * stored, so threads write disjoint parts of the grid and take one slab of memory each.
+     */
+    private void buildByCubes(Surface surface) {
+        int pointsCount = surface.points.size();
+        int k = (int) FastMath.round(12.0 / step);
+        int slab = DistanceStorage.BrickStorage.BRICK_SIZE;
+        int slabsCount = zRes / slab + 1;
+
+        int[] firstSlabs = new int[pointsCount];
+        int[] lastSlabs = new int[pointsCount];
+        int[] starts = new int[slabsCount + 1];
+        for (int i = 0; i < pointsCount; i++) {
+            int kz = (int) FastMath.round((surface.points.get(i).z - minBound.z) / step);
+            firstSlabs[i] = Math.max(0, kz - k) / slab;
+            lastSlabs[i] = Math.min(zRes, kz + k) / slab;
+            for (int s = firstSlabs[i]; s <= lastSlabs[i]; s++) {
+                starts[s + 1]++;
+            }
+        }
+        for (int s = 0; s < slabsCount; s++) {
+            starts[s + 1] += starts[s];
+        }
+        int[] slabPoints = new int[starts[slabsCount]];
+        int[] positions = Arrays.copyOf(starts, slabsCount);
+        for (int i = 0; i < pointsCount; i++) {
+            for (int s = firstSlabs[i]; s <= lastSlabs[i]; s++) {
+                slabPoints[positions[s]++] = i;
+            }
+        }
+
+        IntStream.range(0, slabsCount)
+                .parallel()
+                .forEach(s -> {
+                    int fromZ = s * slab;
+                    int toZ = Math.min(zRes, fromZ + slab - 1);
+                    double[] slabDistances = new double[assembleIndex(0, 0, toZ - fromZ + 1)];
+                    Arrays.fill(slabDistances, Double.MAX_VALUE);
+                    for (int j = starts[s]; j < starts[s + 1]; j++) {
+                        int i = slabPoints[j];
+                        processSurfacePoint(surface.points.get(i), surface.normals.get(i), slabDistances, fromZ, toZ);
+                    }
+                    for (int iz = fromZ; iz <= toZ; iz++) {
+                        for (int iy = 0; iy <= yRes; iy++) {
+                            for (int ix = 0; ix <= xRes; ix++) {
+                                distances.set(distances.index(ix, iy, iz), slabDistances[assembleIndex(ix, iy, iz - fromZ)]);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Every cell gets distance to its feature, the nearest surface point up to rounding of points
+     * to cells, if the cell is within the cube of 12 around the feature as in cube construction.
+     * <p>
+     * Every surface point is the feature of the cell it is rounded to, or the nearest to the cell
+     * of points rounded to it. Features of the other cells are found by exact squared euclidean
+     * distance transform of Felzenszwalb and Huttenlocher over the cells: lower envelopes of
+     * parabolas along x, y and z lines in turn, each line taking features of the lowest parabolas.
+     * Then every cell takes the nearest of the features of its neighbours.
+     * <p>
+     * Features are kept only for a window of z slices, not for the whole grid. The grid is
+     * processed by z slabs of whole bricks at least the cube radius deep. Features of cells of a
+     * slab and its neighbour slices are within the cube radius of them along z, so lines along z
+     * are transformed over the window of slices around the slab. Slices are transformed along x
+     * and y once, when they enter the window, in parallel by lines. So memory is a few slabs of
+     * cells whatever the storage, and construction is linear in the number of cells and doesn't
+     * depend on points count.
+     */
+    private void buildByDistanceTransform(Surface surface) {
+        int pointsCount = surface.points.size();
+        int[] cellX = new int[pointsCount];
+        int[] cellY = new int[pointsCount];
+        int[] cellZ = new int[pointsCount];
+        int[] sliceStarts = new int[zRes + 2];
+        for (int i = 0; i < pointsCount; i++) {
+            Point p = surface.points.get(i);
+            cellX[i] = (int) FastMath.round((p.x - minBound.x) / step);
+            cellY[i] = (int) FastMath.round((p.y - minBound.y) / step);
+            cellZ[i] = (int) FastMath.round((p.z - minBound.z) / step);
+            sliceStarts[cellZ[i] + 1]++;
+        }
+        for (int z = 0; z <= zRes; z++) {
+            sliceStarts[z + 1] += sliceStarts[z];
+        }
+        int[] slicePoints = new int[pointsCount];
+        int[] positions = Arrays.copyOf(sliceStarts, zRes + 1);
+        for (int i = 0; i < pointsCount; i++) {
+            slicePoints[positions[cellZ[i]]++] = i;
+        }
+
+        int k = (int) FastMath.round(12.0 / step);
+        int brick = DistanceStorage.BrickStorage.BRICK_SIZE;
+        int slab = Math.max(1, (k + brick - 1) / brick) * brick;
+        int xSize = xRes + 1;
+        int ySize = yRes + 1;
+        int xySize = xSize * ySize;
+        int windowDepth = Math.min(zRes + 1, slab + 2 * k + 2);
+        int[] window = new int[windowDepth * xySize];
+        int[] slabFeatures = new int[(Math.min(zRes + 1, slab) + 2) * xySize];
+        ThreadLocal<LowerEnvelope> envelopes = ThreadLocal.withInitial(
+                () -> new LowerEnvelope(Math.max(Math.max(xSize, ySize), zRes + 1)));
+
+        int transformedTo = -1;
+        for (int slabIndex = 0; slabIndex <= zRes / slab; slabIndex++) {
+            int fromZ = slabIndex * slab;
+            int toZ = Math.min(zRes, fromZ + slab - 1);
+            // features of slices next to the slab are needed by cells of its border slices
+            int featuresFrom = Math.max(0, fromZ - 1);
+            int featuresTo = Math.min(zRes, toZ + 1);
+            int windowFrom = Math.max(0, featuresFrom - k);
+            int windowTo = Math.min(zRes, featuresTo + k);
+            transformSlices(surface, window, windowDepth, transformedTo + 1, windowTo,
+                    sliceStarts, slicePoints, cellX, cellY, cellZ, envelopes);
+            transformedTo = windowTo;
+
+            IntStream.range(0, ySize)
+                    .parallel()
+                    .forEach(iy -> {
+                        LowerEnvelope envelope = envelopes.get();
+                        for (int ix = 0; ix < xSize; ix++) {
+                            int x = ix;
+                            for (int z = windowFrom; z <= windowTo; z++) {
+                                envelope.line[z - windowFrom] = window[(z % windowDepth) * xySize + iy * xSize + ix];
+                            }
+                            envelope.transform(windowTo - windowFrom + 1, windowFrom, cellZ,
+                                    feature -> square(cellX[feature] - x) + square(cellY[feature] - iy));
+                            for (int z = featuresFrom; z <= featuresTo; z++) {
+                                slabFeatures[(z - featuresFrom) * xySize + iy * xSize + ix] = envelope.line[z - windowFrom];
+                            }
+                        }
+                    });
+
+            // rows of whole bricks, so that sparse storage allocates every brick in one thread
+            IntStream.rangeClosed(0, yRes / brick)
+                    .parallel()
+                    .forEach(row -> {
+                        for (int iz = fromZ; iz <= toZ; iz++) {
+                            for (int iy = row * brick; iy <= Math.min(yRes, row * brick + brick - 1); iy++) {
+                                for (int ix = 0; ix <= xRes; ix++) {
+                                    int feature = nearestFeature(surface, slabFeatures, featuresFrom, ix, iy, iz);
+                                    if (feature >= 0 && Math.abs(cellX[feature] - ix) <= k
+                                            && Math.abs(cellY[feature] - iy) <= k && Math.abs(cellZ[feature] - iz) <= k) {
+                                        double distance = distanceFromPointToGrid(surface.points.get(feature), surface.normals.get(feature), ix, iy, iz);
+                                        distances.set(distances.index(ix, iy, iz), distance);
+                                    }
+                                }
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Seeds slices [from, to] into their places in the window with features of their cells and
+     * transforms them along x and y.
+     */
+    private void transformSlices(Surface surface, int[] window, int windowDepth, int from, int to,
+                                 int[] sliceStarts, int[] slicePoints, int[] cellX, int[] cellY, int[] cellZ,
+                                 ThreadLocal<LowerEnvelope> envelopes) {
+        if (from > to) {
+            return;
+        }
+        int xSize = xRes + 1;
+        int ySize = yRes + 1;
+        int xySize = xSize * ySize;
+        IntStream.rangeClosed(from, to)
+                .parallel()
+                .forEach(z -> {
+                    int slice = (z % windowDepth) * xySize;
+                    Arrays.fill(window, slice, slice + xySize, -1);
+                    for (int j = sliceStarts[z]; j < sliceStarts[z + 1]; j++) {
+                        int i = slicePoints[j];
+                        int index = slice + cellY[i] * xSize + cellX[i];
+                        int feature = window[index];
+                        if (feature < 0 || squaredDistanceToCell(surface.points.get(i), cellX[i], cellY[i], z)
+                                < squaredDistanceToCell(surface.points.get(feature), cellX[i], cellY[i], z)) {
+                            window[index] = i;
+                        }
+                    }
+                });
+        int slicesCount = to - from + 1;
+        IntStream.range(0, slicesCount * ySize)
+                .parallel()
+                .forEach(line -> {
+                    int start = ((from + line / ySize) % windowDepth) * xySize + (line % ySize) * xSize;
+                    LowerEnvelope envelope = envelopes.get();
+                    System.arraycopy(window, start, envelope.line, 0, xSize);
+                    envelope.transform(xSize, 0, cellX, feature -> 0);
+                    System.arraycopy(envelope.line, 0, window, start, xSize);
+                });
+        IntStream.range(0, slicesCount * xSize)
+                .parallel()
+                .forEach(line -> {
+                    int x = line % xSize;
+                    int start = ((from + line / xSize) % windowDepth) * xySize + x;
+                    LowerEnvelope envelope = envelopes.get();
+                    for (int iy = 0; iy < ySize; iy++) {
+                        envelope.line[iy] = window[start + iy * xSize];
+                    }
+                    envelope.transform(ySize, 0, cellY, feature -> square(cellX[feature] - x));
+                    for (int iy = 0; iy < ySize; iy++) {
+                        window[start + iy * xSize] = envelope.line[iy];
+                    }
+                });
+    }
+
+    /**
+     * Nearest to the cell of the features of the cell and its neighbours, which fixes most of
+     * the cells where rounding of points to cells changes the nearest point. Features start with
+     * slice {@code featuresFrom}.
+     */
+    private int nearestFeature(Surface surface, int[] features, int featuresFrom, int x, int y, int z) {
+        int xSize = xRes + 1;
+        int xySize = xSize * (yRes + 1);
+        int result = -1;
+        double resultDistance = Double.MAX_VALUE;
+        for (int iz = Math.max(0, z - 1); iz <= Math.min(zRes, z + 1); iz++) {
+            for (int iy = Math.max(0, y - 1); iy <= Math.min(yRes, y + 1); iy++) {
+                for (int ix = Math.max(0, x - 1); ix <= Math.min(xRes, x + 1); ix++) {
+                    int feature = features[(iz - featuresFrom) * xySize + iy * xSize + ix];
+                    if (feature >= 0 && feature != result) {
+                        double distance = squaredDistanceToCell(surface.points.get(feature), x, y, z);
+                        if (distance < resultDistance || (distance == resultDistance && feature < result)) {
+                            result = feature;
+                            resultDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int square(int value) {
+        return value * value;
+    }
+
+    private double squaredDistanceToCell(Point p, int x, int y, int z) {
+        double dx = minBound.x + x * step - p.x;
+        double dy = minBound.y + y * step - p.y;
+        double dz = minBound.z + z * step - p.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Lower envelope of parabolas {@code (i - center)^2 + height} over cells of a line, one per
+     * cell with feature: center is coordinate of the feature cell along the line and height is
+     * squared distance to the feature cell along the other axes.
+     */
+    private static class LowerEnvelope {
+        // features of cells of the line, -1 for cells without feature
+        final int[] line;
+        private final int[] centers;
+        private final int[] heights;
+        private final int[] parabolaFeatures;
+        private final double[] starts;
+
+        LowerEnvelope(int maxLength) {
+            line = new int[maxLength];
+            centers = new int[maxLength];
+            heights = new int[maxLength];
+            parabolaFeatures = new int[maxLength];
+            starts = new double[maxLength];
+        }
+
+        /**
+         * Replaces features of the first length cells of the line by features of the lowest
+         * parabolas at them.
+         *
+         * @param offset      coordinate of the first cell of the line
+         * @param coordinates coordinate of feature cell along the line for every feature
+         * @param height      squared distance to feature cell along the other axes
+         */
+        void transform(int length, int offset, int[] coordinates, IntUnaryOperator height) {
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                int feature = line[i];
+                if (feature < 0) {
+                    continue;
+                }
+                int center = coordinates[feature] - offset;
+                int h = height.applyAsInt(feature);
+                double start = Double.NEGATIVE_INFINITY;
+                while (count > 0) {
+                    start = intersection(centers[count - 1], heights[count - 1], center, h);
+                    if (start > starts[count - 1]) {
+                        break;
+                    }
+                    count--;
+                    start = Double.NEGATIVE_INFINITY;
+                }
+                centers[count] = center;
+                heights[count] = h;
+                parabolaFeatures[count] = feature;
+                starts[count] = start;
+                count++;
+            }
+            if (count == 0) {
+                return;
+            }
+
+            int parabola = 0;
+            for (int i = 0; i < length; i++) {
+                while (parabola + 1 < count && starts[parabola + 1] <= i) {
+                    parabola++;
+                }
+                line[i] = parabolaFeatures[parabola];
+            }
+        }
+
+        /**
+         * Coordinate where the second parabola becomes lower than the first one, centers of
+         * parabolas of a line are distinct and increasing.
+         */
+        private static double intersection(int firstCenter, int firstHeight, int secondCenter, int secondHeight) {
+            return ((secondHeight + (double) secondCenter * secondCenter) - (firstHeight + (double) firstCenter * firstCenter))
+                    / (2.0 * (secondCenter - firstCenter));
+        }
+    }
+
     public double getDistanceForPoint(Point p) {
-        if (isWithinBounds(p)) {
-            return distances[getIndexForPoint(p)];
-        } else {
+        return getDistanceForPoint(p.x, p.y, p.z);
+    }
+
+    public double getDistanceForPoint(double x, double y, double z) {
+        if (!isWithinBounds(x, y, z)) {
             return Double.POSITIVE_INFINITY;
+        } else if (interpolation) {
+            return interpolate(x, y, z);
+        } else {
+            return distances.get(getIndexForPoint(x, y, z));
+        }
+    }
+
+    private double interpolate(double x, double y, double z) {
+        double fx = (x - minBound.x) / step;
+        double fy = (y - minBound.y) / step;
+        double fz = (z - minBound.z) / step;
+        int ix = Math.max(0, Math.min(xRes - 1, (int) fx));
+        int iy = Math.max(0, Math.min(yRes - 1, (int) fy));
+        int iz = Math.max(0, Math.min(zRes - 1, (int) fz));
+        double tx = Math.max(0, Math.min(1, fx - ix));
+        double ty = Math.max(0, Math.min(1, fy - iy));
+        double tz = Math.max(0, Math.min(1, fz - iz));
+
+        double result = 0;
+        for (int corner = 0; corner < 8; corner++) {
+            int dx = corner & 1;
+            int dy = (corner >> 1) & 1;
+            int dz = corner >> 2;
+            double value = distances.get(distances.index(ix + dx, iy + dy, iz + dz));
+            if (value == Double.MAX_VALUE) {
+                return distances.get(getIndexForPoint(x, y, z));
+            }
+            result += value * (dx == 0 ? 1 - tx : tx) * (dy == 0 ? 1 - ty : ty) * (dz == 0 ? 1 - tz : tz);
         }
+        return result;
     }
 
-    private void processSurfacePoint(Point p, Vector n, double[] distances) {
+    /**
+     * Sets distances from point to cells of the cube around it in z slab [fromZ, toZ] of the
+     * grid, slab distances have cell (ix, iy, fromZ) at the start.
+     */
+    private void processSurfacePoint(Point p, Vector n, double[] distances, int fromZ, int toZ) {
         int kx = (int) FastMath.round((p.x - minBound.x) / step);
         int ky = (int) FastMath.round((p.y - minBound.y) / step);
         int kz = (int) FastMath.round((p.z - minBound.z) / step);
 
         int k = (int) FastMath.round(12.0 / step);
 
-        for (int iz = Math.max(0, kz - k); iz <= Math.min(zRes, kz + k); iz++) {
+        for (int iz = Math.max(fromZ, kz - k); iz <= Math.min(toZ, kz + k); iz++) {
             for (int iy = Math.max(0, ky - k); iy <= Math.min(yRes, ky + k); iy++) {
                 for (int ix = Math.max(0, kx - k); ix <= Math.min(xRes, kx + k); ix++) {
-                    int index = assembleIndex(ix, iy, iz);
+                    int index = assembleIndex(ix, iy, iz - fromZ);
                     double distance = distanceFromPointToGrid(p, n, ix, iy, iz);
                     if (Math.abs(distances[index]) > Math.abs(distance)) {
                         distances[index] = distance;
@@ -127,13 +485,13 @@ public class DistanceGrid {
     }
 
     private void processGridPoint(int x, int y, int z, Surface surface) {
-        int index = assembleIndex(x, y, z);
+        int index = distances.index(x, y, z);
         for (int i = 0; i < surface.points.size(); i++) {
             Point p = surface.points.get(i);
             Vector n = surface.normals.get(i);
             double distance = distanceFromPointToGrid(p, n, x, y, z);
-            if (Math.abs(distances[index]) > Math.abs(distance)) {
-                distances[index] = distance;
+            if (Math.abs(distances.get(index)) > Math.abs(distance)) {
+                distances.set(index, distance);
             }
         }
     }
@@ -152,13 +510,16 @@ public class DistanceGrid {
         }
     }
 
-    private int getIndexForPoint(Point p) {
-        int ix = (int) FastMath.round((p.x - minBound.x) / step);
-        int iy = (int) FastMath.round((p.y - minBound.y) / step);
-        int iz = (int) FastMath.round((p.z - minBound.z) / step);
-        return assembleIndex(ix, iy, iz);
+    private int getIndexForPoint(double x, double y, double z) {
+        int ix = (int) FastMath.round((x - minBound.x) / step);
+        int iy = (int) FastMath.round((y - minBound.y) / step);
+        int iz = (int) FastMath.round((z - minBound.z) / step);
+        return distances.index(ix, iy, iz);
     }
 
+    /**
+     * Index of cell in x-major order of construction arrays.
+     */
     private int assembleIndex(int ix, int iy, int iz) {
         return ix + (iy * (xRes + 1)) + (iz * (yRes + 1) * (xRes + 1));
     }
@@ -192,13 +553,13 @@ public class DistanceGrid {
         return new Point(maxX + margin, maxY + margin, maxZ + margin);
     }
 
-    private boolean isWithinBounds(Point p) {
-        return p.x >= minBound.x
-                && p.y >= minBound.y
-                && p.z >= minBound.z
-                && p.x <= maxBound.x
-                && p.y <= maxBound.y
-                && p.z <= maxBound.z;
+    private boolean isWithinBounds(double x, double y, double z) {
+        return x >= minBound.x
+                && y >= minBound.y
+                && z >= minBound.z
+                && x <= maxBound.x
+                && y <= maxBound.y
+                && z <= maxBound.z;
     }
 
 
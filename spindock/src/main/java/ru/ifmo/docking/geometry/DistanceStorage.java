@@ -0,0 +1,220 @@
+package ru.ifmo.docking.geometry;
+
+import java.util.Arrays;
+
+/**
+ * Values of {@link DistanceGrid} cells. Cells without distance hold {@link Double#MAX_VALUE}.
+ * Storage defines layout of cells: cell (ix, iy, iz) is at {@link #index}.
+ */
+interface DistanceStorage {
+
+    int index(int ix, int iy, int iz);
+
+    double get(int index);
+
+    void set(int index, double value);
+
+    long bytesCount();
+
+    /**
+     * Returns storage of grid with given number of cells along axes by name: "double", "float"
+     * (half the memory, about 7 digits), "fixed16" (quarter of the memory, distances clamped to
+     * [-12, 12] with step 12 / 32766) or "sparse" (exact, only bricks with distances).
+     */
+    static DistanceStorage forName(String name, int xSize, int ySize, int zSize) {
+        // dense storages index cells by int, sparse ones by unsigned int over padded bricks
+        long cellsCount = (long) xSize * ySize * zSize;
+        long maxCellsCount = name.equals("sparse") ? 1L << 32 : Integer.MAX_VALUE - 8;
+        long paddedCount = name.equals("sparse") ? BrickStorage.paddedCellsCount(xSize, ySize, zSize) : cellsCount;
+        if (paddedCount > maxCellsCount) {
+            throw new IllegalArgumentException("Distance grid of " + cellsCount + " cells is too large for "
+                    + name + " storage, at most " + maxCellsCount + " cells are supported");
+        }
+        switch (name) {
+            case "double":
+                return new DoubleStorage(xSize, ySize, zSize);
+            case "float":
+                return new FloatStorage(xSize, ySize, zSize);
+            case "fixed16":
+                return new Fixed16Storage(xSize, ySize, zSize);
+            case "sparse":
+                return new BrickStorage(xSize, ySize, zSize);
+            default:
+                throw new IllegalArgumentException("Unknown distance grid storage: " + name);
+        }
+    }
+
+    /**
+     * Cells in x-major order in one array.
+     */
+    abstract class DenseStorage implements DistanceStorage {
+        private final int xSize;
+        private final int xySize;
+
+        DenseStorage(int xSize, int ySize) {
+            this.xSize = xSize;
+            this.xySize = xSize * ySize;
+        }
+
+        @Override
+        public int index(int ix, int iy, int iz) {
+            return ix + iy * xSize + iz * xySize;
+        }
+    }
+
+    class DoubleStorage extends DenseStorage {
+        private final double[] values;
+
+        DoubleStorage(int xSize, int ySize, int zSize) {
+            super(xSize, ySize);
+            values = new double[xSize * ySize * zSize];
+            Arrays.fill(values, Double.MAX_VALUE);
+        }
+
+        @Override
+        public double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values[index] = value;
+        }
+
+        @Override
+        public long bytesCount() {
+            return values.length * 8L;
+        }
+    }
+
+    class FloatStorage extends DenseStorage {
+        private final float[] values;
+
+        FloatStorage(int xSize, int ySize, int zSize) {
+            super(xSize, ySize);
+            values = new float[xSize * ySize * zSize];
+            Arrays.fill(values, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double get(int index) {
+            float value = values[index];
+            return value == Float.POSITIVE_INFINITY ? Double.MAX_VALUE : value;
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values[index] = value == Double.MAX_VALUE ? Float.POSITIVE_INFINITY : (float) value;
+        }
+
+        @Override
+        public long bytesCount() {
+            return values.length * 4L;
+        }
+    }
+
+    /**
+     * Distances in [-12, 12] as multiples of 12 / 32766, {@link Short#MAX_VALUE} for empty cells.
+     * Farther cells don't affect scoring, which only distinguishes distances from -5 to 1.
+     */
+    class Fixed16Storage extends DenseStorage {
+        static final double RANGE = 12.0;
+        static final double STEP = RANGE / (Short.MAX_VALUE - 1);
+
+        private final short[] values;
+
+        Fixed16Storage(int xSize, int ySize, int zSize) {
+            super(xSize, ySize);
+            values = new short[xSize * ySize * zSize];
+            Arrays.fill(values, Short.MAX_VALUE);
+        }
+
+        @Override
+        public double get(int index) {
+            short value = values[index];
+            return value == Short.MAX_VALUE ? Double.MAX_VALUE : value * STEP;
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values[index] = value == Double.MAX_VALUE ? Short.MAX_VALUE : encode(value);
+        }
+
+        static short encode(double value) {
+            return (short) Math.round(Math.max(-RANGE, Math.min(RANGE, value)) / STEP);
+        }
+
+        @Override
+        public long bytesCount() {
+            return values.length * 2L;
+        }
+    }
+
+    /**
+     * Cells grouped in bricks of 8 x 8 x 8, index is brick number times 512 plus cell number in
+     * brick. Bricks are allocated when the first distance is set in them, so only cells near
+     * surface take memory, other cells are empty. Bricks are allocated without synchronization,
+     * so concurrent writers must set distances in disjoint bricks.
+     */
+    class BrickStorage implements DistanceStorage {
+        static final int BRICK_BITS = 3;
+        static final int BRICK_SIZE = 1 << BRICK_BITS;
+        private static final int BRICK_MASK = BRICK_SIZE - 1;
+        private static final int CELL_BITS = 3 * BRICK_BITS;
+
+        private final int xBricks;
+        private final int xyBricks;
+        private final double[][] bricks;
+
+        BrickStorage(int xSize, int ySize, int zSize) {
+            this.xBricks = (xSize + BRICK_MASK) >> BRICK_BITS;
+            int yBricks = (ySize + BRICK_MASK) >> BRICK_BITS;
+            int zBricks = (zSize + BRICK_MASK) >> BRICK_BITS;
+            this.xyBricks = xBricks * yBricks;
+            this.bricks = new double[xyBricks * zBricks][];
+        }
+
+        static long paddedCellsCount(int xSize, int ySize, int zSize) {
+            return ((long) (xSize + BRICK_MASK) >> BRICK_BITS) * ((ySize + BRICK_MASK) >> BRICK_BITS)
+                    * ((zSize + BRICK_MASK) >> BRICK_BITS) << CELL_BITS;
+        }
+
+        @Override
+        public int index(int ix, int iy, int iz) {
+            int brick = (ix >> BRICK_BITS) + (iy >> BRICK_BITS) * xBricks + (iz >> BRICK_BITS) * xyBricks;
+            int cell = (ix & BRICK_MASK) | (iy & BRICK_MASK) << BRICK_BITS | (iz & BRICK_MASK) << (2 * BRICK_BITS);
+            return brick << CELL_BITS | cell;
+        }
+
+        @Override
+        public double get(int index) {
+            double[] brick = bricks[index >>> CELL_BITS];
+            return brick == null ? Double.MAX_VALUE : brick[index & ((1 << CELL_BITS) - 1)];
+        }
+
+        @Override
+        public void set(int index, double value) {
+            double[] brick = bricks[index >>> CELL_BITS];
+            if (brick == null) {
+                if (value == Double.MAX_VALUE) {
+                    return;
+                }
+                brick = new double[1 << CELL_BITS];
+                Arrays.fill(brick, Double.MAX_VALUE);
+                bricks[index >>> CELL_BITS] = brick;
+            }
+            brick[index & ((1 << CELL_BITS) - 1)] = value;
+        }
+
+        @Override
+        public long bytesCount() {
+            long result = bricks.length * 8L;
+            for (double[] brick : bricks) {
+                if (brick != null) {
+                    result += brick.length * 8L;
+                }
+            }
+            return result;
+        }
+    }
+}
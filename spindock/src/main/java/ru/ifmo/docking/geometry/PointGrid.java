@@ -0,0 +1,134 @@
+package ru.ifmo.docking.geometry;
+
+import java.util.List;
+
+/**
+ * Uniform grid index over a fixed set of points.
+ * <p>
+ * Points are sorted by cell and their coordinates are kept in primitive arrays, so radius
+ * queries visit only cells intersecting the query box and do not allocate per point.
+ */
+public class PointGrid {
+
+    private final double cellSize;
+    private final double minX;
+    private final double minY;
+    private final double minZ;
+    private final int xCells;
+    private final int yCells;
+    private final int zCells;
+
+    private final int[] cellStarts;
+    private final int[] indices;
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+
+    public PointGrid(List<Point> points, double cellSize) {
+        this.cellSize = cellSize;
+
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        double maxZ = Double.NEGATIVE_INFINITY;
+        for (Point point : points) {
+            minX = Math.min(minX, point.x);
+            minY = Math.min(minY, point.y);
+            minZ = Math.min(minZ, point.z);
+            maxX = Math.max(maxX, point.x);
+            maxY = Math.max(maxY, point.y);
+            maxZ = Math.max(maxZ, point.z);
+        }
+        if (points.isEmpty()) {
+            minX = minY = minZ = maxX = maxY = maxZ = 0;
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.xCells = (int) ((maxX - minX) / cellSize) + 1;
+        this.yCells = (int) ((maxY - minY) / cellSize) + 1;
+        this.zCells = (int) ((maxZ - minZ) / cellSize) + 1;
+
+        int[] pointCells = new int[points.size()];
+        cellStarts = new int[xCells * yCells * zCells + 1];
+        for (int i = 0; i < points.size(); i++) {
+            Point point = points.get(i);
+            pointCells[i] = cellIndex(cell(point.x, this.minX, xCells), cell(point.y, this.minY, yCells), cell(point.z, this.minZ, zCells));
+            cellStarts[pointCells[i] + 1] += 1;
+        }
+        for (int cell = 0; cell < cellStarts.length - 1; cell++) {
+            cellStarts[cell + 1] += cellStarts[cell];
+        }
+
+        indices = new int[points.size()];
+        xs = new double[points.size()];
+        ys = new double[points.size()];
+        zs = new double[points.size()];
+
+        int[] positions = new int[cellStarts.length - 1];
+        System.arraycopy(cellStarts, 0, positions, 0, positions.length);
+        for (int i = 0; i < points.size(); i++) {
+            Point point = points.get(i);
+            int position = positions[pointCells[i]]++;
+            indices[position] = i;
+            xs[position] = point.x;
+            ys[position] = point.y;
+            zs[position] = point.z;
+        }
+    }
+
+    /**
+     * Calls {@code visitor} for every indexed point strictly closer than {@code radius}
+     * to (x, y, z). Offsets passed to visitor are from the query point to the found one.
+     */
+    public void forEachWithin(double x, double y, double z, double radius, NeighbourVisitor visitor) {
+        int fromX = cell(x - radius, minX, xCells);
+        int toX = cell(x + radius, minX, xCells);
+        int fromY = cell(y - radius, minY, yCells);
+        int toY = cell(y + radius, minY, yCells);
+        int fromZ = cell(z - radius, minZ, zCells);
+        int toZ = cell(z + radius, minZ, zCells);
+        double radiusSqr = radius * radius;
+
+        for (int iz = fromZ; iz <= toZ; iz++) {
+            for (int iy = fromY; iy <= toY; iy++) {
+                int rowStart = cellIndex(fromX, iy, iz);
+                int rowEnd = cellIndex(toX, iy, iz);
+                for (int position = cellStarts[rowStart]; position < cellStarts[rowEnd + 1]; position++) {
+                    double dx = xs[position] - x;
+                    double dy = ys[position] - y;
+                    double dz = zs[position] - z;
+                    double distanceSqr = dx * dx + dy * dy + dz * dz;
+                    if (distanceSqr < radiusSqr) {
+                        visitor.visit(indices[position], dx, dy, dz, distanceSqr);
+                    }
+                }
+            }
+        }
+    }
+
+    public void forEachWithin(Point p, double radius, NeighbourVisitor visitor) {
+        forEachWithin(p.x, p.y, p.z, radius, visitor);
+    }
+
+    public int size() {
+        return indices.length;
+    }
+
+    private int cell(double coordinate, double min, int cells) {
+        int cell = (int) Math.floor((coordinate - min) / cellSize);
+        return Math.max(0, Math.min(cells - 1, cell));
+    }
+
+    private int cellIndex(int ix, int iy, int iz) {
+        return ix + xCells * (iy + yCells * iz);
+    }
+
+    @FunctionalInterface
+    public interface NeighbourVisitor {
+        void visit(int index, double dx, double dy, double dz, double distanceSqr);
+    }
+}
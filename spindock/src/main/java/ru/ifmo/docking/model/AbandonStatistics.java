@@ -0,0 +1,47 @@
+package ru.ifmo.docking.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of early abandoned correlations, abandoned pairs are counted by the number
+ * of rows scanned before abandonment.
+ */
+public class AbandonStatistics {
+    private final LongAdder[] abandoned;
+    private final LongAdder completed = new LongAdder();
+
+    public AbandonStatistics(int rows) {
+        abandoned = new LongAdder[rows];
+        for (int row = 0; row < rows; row++) {
+            abandoned[row] = new LongAdder();
+        }
+    }
+
+    void abandoned(int rowsScanned) {
+        abandoned[rowsScanned].increment();
+    }
+
+    void completed() {
+        completed.increment();
+    }
+
+    public int getRows() {
+        return abandoned.length;
+    }
+
+    public long getAbandoned(int rowsScanned) {
+        return abandoned[rowsScanned].sum();
+    }
+
+    public long getAbandoned() {
+        long result = 0;
+        for (LongAdder adder : abandoned) {
+            result += adder.sum();
+        }
+        return result;
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+}
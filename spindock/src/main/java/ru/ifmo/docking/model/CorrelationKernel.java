@@ -0,0 +1,37 @@
+package ru.ifmo.docking.model;
+
+import ru.ifmo.docking.util.Logger;
+
+/**
+ * Computes correlation of k-th image of unflipped stack and l-th image of flipped stack.
+ */
+@FunctionalInterface
+public interface CorrelationKernel {
+
+    CorrelationKernel SCALAR = (first, k, second, l) -> first.correlation(k, second, l);
+
+    String VECTOR_KERNEL_CLASS = "ru.ifmo.docking.model.VectorCorrelationKernel";
+
+    double correlation(SpinImageStack first, int k, SpinImageStack second, int l);
+
+    /**
+     * Returns kernel by name: "scalar" or "vector". Vector kernel needs jdk.incubator.vector module
+     * (java --add-modules jdk.incubator.vector) and the jar built with vector-api profile,
+     * otherwise scalar kernel is returned.
+     */
+    static CorrelationKernel forName(String name) {
+        switch (name) {
+            case "scalar":
+                return SCALAR;
+            case "vector":
+                try {
+                    return (CorrelationKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    Logger.log("Vector correlation kernel is not available (%s), falling back to scalar", e);
+                    return SCALAR;
+                }
+            default:
+                throw new IllegalArgumentException("Unknown correlation backend: " + name);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ru.ifmo.docking.model;
+
+import java.util.stream.IntStream;
+
+/**
+ * Spin images of a stack shifted to zero mean and scaled to unit norm over the full bin set.
+ * <p>
+ * Pearson correlation over all bins of two normalized images is their dot product, so
+ * correlations of many image pairs form a matrix product and are computed by tiles.
+ * Unlike {@link SpinImageStack#correlation(int, SpinImageStack, int)}, bins which are zero
+ * in both images are counted. Images with all bins equal are kept zero and correlate as 0.
+ */
+public class NormalizedSpinImageStack {
+    private final int count;
+    private final int size;
+    private final int stride;
+    private final double[] values;
+
+    private NormalizedSpinImageStack(int count, int size, int stride) {
+        this.count = count;
+        this.size = size;
+        this.stride = stride;
+        this.values = new double[count * stride];
+    }
+
+    public static NormalizedSpinImageStack of(SpinImageStack stack) {
+        int size = stack.rows * stack.columns;
+        NormalizedSpinImageStack result = new NormalizedSpinImageStack(stack.count, size, stack.stride);
+        IntStream.range(0, stack.count)
+                .parallel()
+                .forEach(k -> {
+                    double mean = stack.sums[k] / size;
+                    double variance = stack.squareSums[k] - stack.sums[k] * mean;
+                    if (variance <= 0) {
+                        return;
+                    }
+                    double scale = 1 / Math.sqrt(variance);
+                    int offset = k * stack.stride;
+                    for (int index = offset; index < offset + size; index++) {
+                        result.values[index] = (stack.bins[index] - mean) * scale;
+                    }
+                });
+        return result;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public double correlation(int k, NormalizedSpinImageStack that, int l) {
+        double[] p = this.values;
+        double[] q = that.values;
+        int pOffset = k * stride;
+        int qOffset = l * that.stride;
+        double result = 0;
+        for (int index = 0; index < size; index++) {
+            result += p[pOffset + index] * q[qOffset + index];
+        }
+        return result;
+    }
+
+    /**
+     * Stores correlations of images [firstFrom, firstTo) of this stack with images
+     * [secondFrom, secondTo) of that stack into row-major {@code tile}.
+     * <p>
+     * Pairs are processed by 2x2 blocks, so every loaded bin is used twice.
+     */
+    public void correlations(int firstFrom, int firstTo, NormalizedSpinImageStack that, int secondFrom, int secondTo, double[] tile) {
+        if (that.size != size) {
+            throw new IllegalArgumentException("Spin images dimensions differ");
+        }
+        double[] p = this.values;
+        double[] q = that.values;
+        int width = secondTo - secondFrom;
+
+        int k = firstFrom;
+        for (; k + 1 < firstTo; k += 2) {
+            int p0 = k * stride;
+            int p1 = p0 + stride;
+            int l = secondFrom;
+            for (; l + 1 < secondTo; l += 2) {
+                int q0 = l * that.stride;
+                int q1 = q0 + that.stride;
+                double c00 = 0;
+                double c01 = 0;
+                double c10 = 0;
+                double c11 = 0;
+                for (int index = 0; index < size; index++) {
+                    double a0 = p[p0 + index];
+                    double a1 = p[p1 + index];
+                    double b0 = q[q0 + index];
+                    double b1 = q[q1 + index];
+                    c00 += a0 * b0;
+                    c01 += a0 * b1;
+                    c10 += a1 * b0;
+                    c11 += a1 * b1;
+                }
+                int position = (k - firstFrom) * width + (l - secondFrom);
+                tile[position] = c00;
+                tile[position + 1] = c01;
+                tile[position + width] = c10;
+                tile[position + width + 1] = c11;
+            }
+            if (l < secondTo) {
+                tile[(k - firstFrom) * width + (l - secondFrom)] = correlation(k, that, l);
+                tile[(k + 1 - firstFrom) * width + (l - secondFrom)] = correlation(k + 1, that, l);
+            }
+        }
+        if (k < firstTo) {
+            for (int l = secondFrom; l < secondTo; l++) {
+                tile[(k - firstFrom) * width + (l - secondFrom)] = correlation(k, that, l);
+            }
+        }
+    }
+}
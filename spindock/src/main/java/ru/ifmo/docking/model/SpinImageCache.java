@@ -0,0 +1,188 @@
+package ru.ifmo.docking.model;
+
+import ru.ifmo.docking.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Spin image stacks cache keyed by surface content and spin image parameters.
+ * <p>
+ * Stacks are kept in memory and, if directory is given, in binary files which are memory-mapped
+ * on load, so repeated runs against the same surface skip stack computation.
+ * <p>
+ * File layout (little endian): magic, version, count, rows, columns, stride, flipped and padding
+ * ints, then sums, squareSums, bins and nonZeroCounts arrays.
+ */
+public class SpinImageCache {
+    private static final int MAGIC = 0x5350494e;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 * Integer.BYTES;
+
+    private final File directory;
+    private final Map<String, SpinImageStack> stacks = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory cache files directory, or null for in-memory cache only
+     */
+    public SpinImageCache(File directory) {
+        this.directory = directory;
+        if (directory != null && !directory.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+        }
+    }
+
+    public SpinImageStack get(Surface surface, double radius, double binSize, boolean flipped) {
+        String key = key(surface, radius, binSize, flipped);
+        return stacks.computeIfAbsent(key, k -> load(k, surface, radius, binSize, flipped));
+    }
+
+    /**
+     * Same stack as {@link #get(Surface, double, double, boolean)}, but if it is not cached and
+     * surface has the same vertices count as previous one, the stack of previous surface is
+     * updated in images affected by changed vertices instead of computing all images.
+     */
+    public SpinImageStack getUpdated(Surface surface, Surface previous, double radius, double binSize, boolean flipped) {
+        String key = key(surface, radius, binSize, flipped);
+        SpinImageStack cached = stacks.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (previous.points.size() != surface.points.size()) {
+            return get(surface, radius, binSize, flipped);
+        }
+
+        SpinImageStack previousStack = get(previous, radius, binSize, flipped);
+        return stacks.computeIfAbsent(key, k -> load(k, surface,
+                () -> previousStack.update(previous, surface, surface.changedPoints(previous), radius, binSize)));
+    }
+
+    private SpinImageStack load(String key, Surface surface, double radius, double binSize, boolean flipped) {
+        return load(key, surface, () -> SpinImageStack.compute(surface, radius, binSize, flipped));
+    }
+
+    private SpinImageStack load(String key, Surface surface, Supplier<SpinImageStack> computation) {
+        if (directory == null) {
+            return computation.get();
+        }
+
+        File file = new File(directory, key + ".spin");
+        if (file.exists()) {
+            try {
+                SpinImageStack stack = read(file);
+                Logger.log("Spin image stack for surface %s loaded from %s", surface.name, file);
+                return stack;
+            } catch (IOException | RuntimeException e) {
+                Logger.log("Can't read spin image cache file %s: %s", file, e);
+            }
+        }
+
+        SpinImageStack stack = computation.get();
+        try {
+            write(stack, file);
+        } catch (IOException e) {
+            Logger.log("Can't write spin image cache file %s: %s", file, e);
+        }
+        return stack;
+    }
+
+    private static String key(Surface surface, double radius, double binSize, boolean flipped) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(surface.contentHash());
+        digest.update(ByteBuffer.allocate(2 * Double.BYTES + Integer.BYTES * 2)
+                .putDouble(radius)
+                .putDouble(binSize)
+                .putInt(flipped ? 1 : 0)
+                .putInt(VERSION)
+                .array());
+
+        StringBuilder result = new StringBuilder();
+        for (byte b : digest.digest()) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    static void write(SpinImageStack stack, File file) throws IOException {
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        long size = HEADER_SIZE + (long) stack.count * (2 * Double.BYTES + Integer.BYTES) + (long) stack.bins.length * Double.BYTES;
+
+        try (RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(stack.count)
+                    .putInt(stack.rows)
+                    .putInt(stack.columns)
+                    .putInt(stack.stride)
+                    .putInt(stack.flipped ? 1 : 0)
+                    .putInt(0);
+
+            buffer.asDoubleBuffer().put(stack.sums);
+            buffer.position(buffer.position() + stack.count * Double.BYTES);
+            buffer.asDoubleBuffer().put(stack.squareSums);
+            buffer.position(buffer.position() + stack.count * Double.BYTES);
+            buffer.asDoubleBuffer().put(stack.bins);
+            buffer.position(buffer.position() + stack.bins.length * Double.BYTES);
+            buffer.asIntBuffer().put(stack.nonZeroCounts);
+            buffer.force();
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static SpinImageStack read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a spin image cache file");
+            }
+
+            int count = buffer.getInt();
+            int rows = buffer.getInt();
+            int columns = buffer.getInt();
+            int stride = buffer.getInt();
+            boolean flipped = buffer.getInt() != 0;
+            buffer.getInt();
+
+            SpinImageStack stack = new SpinImageStack(count, rows, columns, flipped);
+            if (stack.stride != stride) {
+                throw new IOException("Unexpected spin image stride " + stride);
+            }
+
+            buffer.asDoubleBuffer().get(stack.sums);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            buffer.asDoubleBuffer().get(stack.squareSums);
+            buffer.position(buffer.position() + count * Double.BYTES);
+            buffer.asDoubleBuffer().get(stack.bins);
+            buffer.position(buffer.position() + stack.bins.length * Double.BYTES);
+            buffer.asIntBuffer().get(stack.nonZeroCounts);
+            for (int k = 0; k < count; k++) {
+                stack.computeRowSuffixes(k);
+            }
+            return stack;
+        }
+    }
+}
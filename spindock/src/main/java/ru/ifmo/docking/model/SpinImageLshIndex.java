@@ -0,0 +1,183 @@
+package ru.ifmo.docking.model;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Locality sensitive hashing index over spin images of one stack.
+ * <p>
+ * Every image is centered, the mean centered image of indexed stack is subtracted from it,
+ * and the result is projected on {@code tables * bits} random gaussian directions. Signs of
+ * projections form one {@code bits}-wide key per table (SimHash). Images with close
+ * Pearson correlation over the full bin set have close keys, so querying buckets of an image
+ * from another stack returns likely highly correlated candidates. Candidates are expected
+ * to be re-scored with exact correlation.
+ */
+public class SpinImageLshIndex {
+    private static final long SEED = 239;
+
+    private final SpinImageStack stack;
+    private final int tables;
+    private final int bits;
+    private final int probeDistance;
+
+    private final double[] planes;
+    private final double[] planeSums;
+    private final double[] planeOffsets;
+    private final int[][] bucketStarts;
+    private final int[][] bucketItems;
+
+    /**
+     * @param probeDistance 0 to query only image's own buckets, 1 to query also buckets
+     *                      with keys differing in one bit
+     */
+    public SpinImageLshIndex(SpinImageStack stack, int tables, int bits, int probeDistance) {
+        if (bits < 1 || bits > 20) {
+            throw new IllegalArgumentException("LSH key bits should be in [1, 20] range: " + bits);
+        }
+        this.stack = stack;
+        this.tables = tables;
+        this.bits = bits;
+        this.probeDistance = probeDistance;
+
+        int size = stack.rows * stack.columns;
+        double[] meanImage = new double[size];
+        for (int k = 0; k < stack.count; k++) {
+            double mean = stack.sums[k] / size;
+            for (int index = 0; index < size; index++) {
+                meanImage[index] += (stack.bins[k * stack.stride + index] - mean) / stack.count;
+            }
+        }
+
+        Random random = new Random(SEED);
+        planes = new double[tables * bits * size];
+        planeSums = new double[tables * bits];
+        planeOffsets = new double[tables * bits];
+        for (int plane = 0; plane < tables * bits; plane++) {
+            for (int index = 0; index < size; index++) {
+                double value = random.nextGaussian();
+                planes[plane * size + index] = value;
+                planeSums[plane] += value;
+                planeOffsets[plane] += value * meanImage[index];
+            }
+        }
+
+        int[][] keys = new int[stack.count][];
+        IntStream.range(0, stack.count)
+                .parallel()
+                .forEach(k -> keys[k] = keys(stack, k));
+
+        bucketStarts = new int[tables][];
+        bucketItems = new int[tables][];
+        for (int table = 0; table < tables; table++) {
+            int[] starts = new int[(1 << bits) + 1];
+            for (int k = 0; k < stack.count; k++) {
+                starts[keys[k][table] + 1] += 1;
+            }
+            for (int key = 0; key < 1 << bits; key++) {
+                starts[key + 1] += starts[key];
+            }
+            int[] items = new int[stack.count];
+            int[] positions = new int[1 << bits];
+            System.arraycopy(starts, 0, positions, 0, positions.length);
+            for (int k = 0; k < stack.count; k++) {
+                items[positions[keys[k][table]]++] = k;
+            }
+            bucketStarts[table] = starts;
+            bucketItems[table] = items;
+        }
+    }
+
+    /**
+     * Keys of l-th image of given stack in every table. Stack should have the same bins layout
+     * as indexed one, flipped ligand stack can be queried against receptor index.
+     */
+    private int[] keys(SpinImageStack images, int l) {
+        int size = images.rows * images.columns;
+        int offset = l * images.stride;
+        double mean = images.sums[l] / size;
+
+        int[] keys = new int[tables];
+        for (int table = 0; table < tables; table++) {
+            int key = 0;
+            for (int bit = 0; bit < bits; bit++) {
+                int plane = table * bits + bit;
+                int planeOffset = plane * size;
+                double projection = 0;
+                for (int index = 0; index < size; index++) {
+                    projection += planes[planeOffset + index] * images.bins[offset + index];
+                }
+                if (projection - mean * planeSums[plane] - planeOffsets[plane] > 0) {
+                    key |= 1 << bit;
+                }
+            }
+            keys[table] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * Stores indices of candidate images for l-th image of given stack into query result.
+     *
+     * @return candidates count
+     */
+    public int query(SpinImageStack images, int l, Query query) {
+        if (images.rows != stack.rows || images.columns != stack.columns) {
+            throw new IllegalArgumentException("Spin images dimensions differ");
+        }
+
+        query.nextStamp();
+        int[] keys = keys(images, l);
+        for (int table = 0; table < tables; table++) {
+            collect(table, keys[table], query);
+            if (probeDistance > 0) {
+                for (int bit = 0; bit < bits; bit++) {
+                    collect(table, keys[table] ^ (1 << bit), query);
+                }
+            }
+        }
+        return query.size;
+    }
+
+    private void collect(int table, int key, Query query) {
+        int[] items = bucketItems[table];
+        for (int position = bucketStarts[table][key]; position < bucketStarts[table][key + 1]; position++) {
+            query.add(items[position]);
+        }
+    }
+
+    public Query newQuery() {
+        return new Query(stack.count);
+    }
+
+    /**
+     * Per-thread query buffers.
+     */
+    public static class Query {
+        private final int[] stamps;
+        private final int[] candidates;
+        private int stamp;
+        private int size;
+
+        private Query(int count) {
+            this.stamps = new int[count];
+            this.candidates = new int[count];
+        }
+
+        private void nextStamp() {
+            stamp += 1;
+            size = 0;
+        }
+
+        private void add(int k) {
+            if (stamps[k] != stamp) {
+                stamps[k] = stamp;
+                candidates[size++] = k;
+            }
+        }
+
+        public int get(int position) {
+            return candidates[position];
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package ru.ifmo.docking.model;
+
+import ru.ifmo.docking.geometry.Point;
+import ru.ifmo.docking.geometry.PointGrid;
+import ru.ifmo.docking.geometry.Vector;
+import ru.ifmo.docking.util.Logger;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Spin images of every surface point packed into one flat array.
+ * <p>
+ * Image {@code k} occupies {@code bins[k * stride, k * stride + size)}, where stride is padded
+ * to whole cache lines. Flipped stacks store rows in reverse order, so that correlation
+ * between unflipped receptor image and flipped ligand image is a plain element-wise scan.
+ * Sums, sums of squares and non-zero bins counts are precomputed for every image, as well
+ * as their suffixes over stored rows used to bound correlation of partially scanned pairs.
+ * Padding bins are always zero, so kernels may scan whole stride.
+ */
+public class SpinImageStack {
+    private static final int CACHE_LINE_DOUBLES = 8;
+
+    final int count;
+    final int rows;
+    final int columns;
+    final int stride;
+    final boolean flipped;
+
+    final double[] bins;
+    final double[] sums;
+    final double[] squareSums;
+    final int[] nonZeroCounts;
+    final double[] rowSquareSuffixes;
+    final int[] rowNonZeroSuffixes;
+
+    SpinImageStack(int count, int rows, int columns, boolean flipped) {
+        this.count = count;
+        this.rows = rows;
+        this.columns = columns;
+        this.stride = (rows * columns + CACHE_LINE_DOUBLES - 1) / CACHE_LINE_DOUBLES * CACHE_LINE_DOUBLES;
+        this.flipped = flipped;
+        this.bins = new double[count * stride];
+        this.sums = new double[count];
+        this.squareSums = new double[count];
+        this.nonZeroCounts = new int[count];
+        this.rowSquareSuffixes = new double[count * (rows + 1)];
+        this.rowNonZeroSuffixes = new int[count * (rows + 1)];
+    }
+
+    public static SpinImageStack compute(Surface surface, double radius, double binSize, boolean flipped) {
+        return compute(surface, new PointGrid(surface.points, radius), radius, binSize, flipped);
+    }
+
+    /**
+     * Computes stack using already built index over surface points.
+     */
+    public static SpinImageStack compute(Surface surface, PointGrid index, double radius, double binSize, boolean flipped) {
+        int iMax = (int) Math.round(Math.floor(2 * radius / binSize)) + 1;
+        int jMax = (int) Math.round(Math.floor(radius / binSize)) + 1;
+
+        SpinImageStack stack = new SpinImageStack(surface.points.size(), iMax + 1, jMax + 1, flipped);
+        IntStream.range(0, stack.count)
+                .parallel()
+                .forEach(k -> {
+                    stack.fillImage(k, surface, index, radius, binSize);
+                    stack.computeStatistics(k);
+                });
+        return stack;
+    }
+
+    /**
+     * Stack of {@code newSurface}, which has the same vertices as {@code oldSurface} this stack
+     * was computed for, except {@code changedPoints}.
+     * <p>
+     * Only images of changed vertices and of vertices closer than radius to old or new position
+     * of any changed vertex are recomputed, the rest are copied from this stack.
+     */
+    public SpinImageStack update(Surface oldSurface, Surface newSurface, int[] changedPoints, double radius, double binSize) {
+        if (oldSurface.points.size() != count || newSurface.points.size() != count) {
+            throw new IllegalArgumentException("Surfaces vertices count differs from stack size");
+        }
+        if ((int) Math.round(Math.floor(2 * radius / binSize)) + 2 != rows || (int) Math.round(Math.floor(radius / binSize)) + 2 != columns) {
+            throw new IllegalArgumentException("Spin image parameters differ from stack ones");
+        }
+
+        PointGrid index = new PointGrid(newSurface.points, radius);
+        boolean[] affected = new boolean[count];
+        for (int changed : changedPoints) {
+            affected[changed] = true;
+            index.forEachWithin(oldSurface.points.get(changed), radius, (neighbour, dx, dy, dz, distanceSqr) -> affected[neighbour] = true);
+            index.forEachWithin(newSurface.points.get(changed), radius, (neighbour, dx, dy, dz, distanceSqr) -> affected[neighbour] = true);
+        }
+
+        SpinImageStack stack = new SpinImageStack(count, rows, columns, flipped);
+        System.arraycopy(bins, 0, stack.bins, 0, bins.length);
+        System.arraycopy(sums, 0, stack.sums, 0, count);
+        System.arraycopy(squareSums, 0, stack.squareSums, 0, count);
+        System.arraycopy(nonZeroCounts, 0, stack.nonZeroCounts, 0, count);
+        System.arraycopy(rowSquareSuffixes, 0, stack.rowSquareSuffixes, 0, rowSquareSuffixes.length);
+        System.arraycopy(rowNonZeroSuffixes, 0, stack.rowNonZeroSuffixes, 0, rowNonZeroSuffixes.length);
+
+        int[] recomputed = IntStream.range(0, count).filter(k -> affected[k]).toArray();
+        IntStream.of(recomputed)
+                .parallel()
+                .forEach(k -> {
+                    Arrays.fill(stack.bins, k * stride, (k + 1) * stride, 0.0);
+                    stack.fillImage(k, newSurface, index, radius, binSize);
+                    stack.computeStatistics(k);
+                });
+        Logger.log("Spin image stack for surface %s updated, %d of %d images recomputed", newSurface.name, recomputed.length, count);
+        return stack;
+    }
+
+    private void fillImage(int k, Surface surface, PointGrid index, double radius, double binSize) {
+        Point basePoint = surface.points.get(k);
+        Vector normal = surface.normals.get(k);
+        int offset = k * stride;
+
+        index.forEachWithin(basePoint, radius, (neighbour, dx, dy, dz, distanceSqr) -> {
+            double b = normal.x * dx + normal.y * dy + normal.z * dz;
+            double a = Math.sqrt(Math.max(0.0, distanceSqr - b * b));
+
+            int i = (int) Math.round(Math.floor((radius - b) / binSize));
+            int j = (int) Math.round(Math.floor(a / binSize));
+
+            double bilA = (radius - b) / binSize - i;
+            double bilB = a / binSize - j;
+
+            bins[offset + cell(i, j)] += (1 - bilA) * (1 - bilB);
+            bins[offset + cell(i + 1, j)] += bilA * (1 - bilB);
+            bins[offset + cell(i, j + 1)] += (1 - bilA) * bilB;
+            bins[offset + cell(i + 1, j + 1)] += bilA * bilB;
+        });
+    }
+
+    private int cell(int i, int j) {
+        return (flipped ? rows - i - 1 : i) * columns + j;
+    }
+
+    private void computeStatistics(int k) {
+        int offset = k * stride;
+        double sum = 0;
+        double squareSum = 0;
+        int nonZero = 0;
+        for (int index = offset; index < offset + rows * columns; index++) {
+            double value = bins[index];
+            sum += value;
+            squareSum += value * value;
+            if (value != 0) {
+                nonZero += 1;
+            }
+        }
+        sums[k] = sum;
+        squareSums[k] = squareSum;
+        nonZeroCounts[k] = nonZero;
+        computeRowSuffixes(k);
+    }
+
+    /**
+     * Sums of squares and non-zero counts of stored rows from r to the last one are kept
+     * at {@code k * (rows + 1) + r}.
+     */
+    void computeRowSuffixes(int k) {
+        int offset = k * stride;
+        int suffixOffset = k * (rows + 1);
+        rowSquareSuffixes[suffixOffset + rows] = 0;
+        rowNonZeroSuffixes[suffixOffset + rows] = 0;
+        for (int row = rows - 1; row >= 0; row--) {
+            double squareSum = 0;
+            int nonZero = 0;
+            for (int index = offset + row * columns; index < offset + (row + 1) * columns; index++) {
+                double value = bins[index];
+                squareSum += value * value;
+                if (value != 0) {
+                    nonZero += 1;
+                }
+            }
+            rowSquareSuffixes[suffixOffset + row] = rowSquareSuffixes[suffixOffset + row + 1] + squareSum;
+            rowNonZeroSuffixes[suffixOffset + row] = rowNonZeroSuffixes[suffixOffset + row + 1] + nonZero;
+        }
+    }
+
+    /**
+     * Same value as {@link SpinImage#correlation(SpinImage)} of k-th image of this stack and
+     * l-th image of that stack. Exactly one of stacks should be flipped.
+     * <p>
+     * Bins where both images are zero do not contribute to any sum, so only the number of
+     * such bins and the cross product depend on the pair.
+     */
+    public double correlation(int k, SpinImageStack that, int l) {
+        double sumP = this.sums[k];
+        double sumQ = that.sums[l];
+        if (sumP == 0 || sumQ == 0) {
+            return 0;
+        }
+
+        double[] p = this.bins;
+        double[] q = that.bins;
+        int pOffset = k * stride;
+        int qOffset = l * that.stride;
+        int size = rows * columns;
+
+        int n = this.nonZeroCounts[k] + that.nonZeroCounts[l];
+        double sumPQ = 0;
+        for (int index = 0; index < size; index++) {
+            double pValue = p[pOffset + index];
+            double qValue = q[qOffset + index];
+            sumPQ += pValue * qValue;
+            if (pValue != 0 && qValue != 0) {
+                n -= 1;
+            }
+        }
+
+        double sumPP = this.squareSums[k];
+        double sumQQ = that.squareSums[l];
+        return (n * sumPQ - sumP * sumQ) / Math.sqrt((n * sumPP - sumP * sumP) * (n * sumQQ - sumQ * sumQ));
+    }
+
+    /**
+     * Same value as {@link #correlation(int, SpinImageStack, int)} if it is not less than
+     * threshold, otherwise may return negative infinity without scanning all rows.
+     * <p>
+     * After every row the cross product of remaining rows is bounded by Cauchy-Schwarz
+     * inequality and the number of bins non-zero in any image by remaining non-zero counts.
+     * For a fixed number of bins correlation grows with cross product, and as a function of
+     * that number it has at most one extremum, so it is enough to check range ends and
+     * the extremum. Pair is abandoned as soon as none of them reaches threshold.
+     *
+     * @param statistics abandoned and completed pairs counters, may be null
+     */
+    public double correlation(int k, SpinImageStack that, int l, double threshold, AbandonStatistics statistics) {
+        double sumP = this.sums[k];
+        double sumQ = that.sums[l];
+        if (sumP == 0 || sumQ == 0 || threshold == Double.NEGATIVE_INFINITY) {
+            return correlation(k, that, l);
+        }
+
+        double[] p = this.bins;
+        double[] q = that.bins;
+        int pOffset = k * stride;
+        int qOffset = l * that.stride;
+        int pSuffixOffset = k * (rows + 1);
+        int qSuffixOffset = l * (rows + 1);
+
+        double sumPP = this.squareSums[k];
+        double sumQQ = that.squareSums[l];
+        // bound is too weak to be checked while most of the image is not scanned
+        int firstCheckedRow = 0;
+        while (firstCheckedRow < rows && 2 * this.rowSquareSuffixes[pSuffixOffset + firstCheckedRow] > sumPP) {
+            firstCheckedRow++;
+        }
+
+        int n = this.nonZeroCounts[k] + that.nonZeroCounts[l];
+        double sumPQ = 0;
+        int index = 0;
+        for (int end = firstCheckedRow * columns; index < end; index++) {
+            double pValue = p[pOffset + index];
+            double qValue = q[qOffset + index];
+            sumPQ += pValue * qValue;
+            if (pValue != 0 && qValue != 0) {
+                n -= 1;
+            }
+        }
+
+        for (int row = firstCheckedRow; row < rows; row++) {
+            double remainingPQ = Math.sqrt(this.rowSquareSuffixes[pSuffixOffset + row] * that.rowSquareSuffixes[qSuffixOffset + row]);
+            int remainingOverlap = Math.min(this.rowNonZeroSuffixes[pSuffixOffset + row], that.rowNonZeroSuffixes[qSuffixOffset + row]);
+            if (!mayReach(threshold, sumPQ + remainingPQ, n - remainingOverlap, n, sumP, sumQ, sumPP, sumQQ)) {
+                if (statistics != null) {
+                    statistics.abandoned(row);
+                }
+                return Double.NEGATIVE_INFINITY;
+            }
+
+            for (int end = index + columns; index < end; index++) {
+                double pValue = p[pOffset + index];
+                double qValue = q[qOffset + index];
+                sumPQ += pValue * qValue;
+                if (pValue != 0 && qValue != 0) {
+                    n -= 1;
+                }
+            }
+        }
+
+        if (statistics != null) {
+            statistics.completed();
+        }
+        return (n * sumPQ - sumP * sumQ) / Math.sqrt((n * sumPP - sumP * sumP) * (n * sumQQ - sumQ * sumQ));
+    }
+
+    /**
+     * Checks if correlation with cross product not greater than sumPQ and the number of
+     * counted bins in [nLow, nHigh] may be not less than threshold.
+     */
+    private static boolean mayReach(double threshold, double sumPQ, int nLow, int nHigh,
+                                    double sumP, double sumQ, double sumPP, double sumQQ) {
+        double a = sumP * sumQ;
+        double b = sumP * sumP;
+        double c = sumQ * sumQ;
+        if (reaches(threshold, nLow, sumPQ, a, b, c, sumPP, sumQQ) || reaches(threshold, nHigh, sumPQ, a, b, c, sumPP, sumQQ)) {
+            return true;
+        }
+
+        // numerator of the derivative by n is linear in n
+        double linear = a * sumPP * sumQQ - sumPQ * (c * sumPP + b * sumQQ) / 2;
+        double constant = sumPQ * b * c - a * (c * sumPP + b * sumQQ) / 2;
+        double extremum = -constant / linear;
+        return extremum > nLow && extremum < nHigh && reaches(threshold, extremum, sumPQ, a, b, c, sumPP, sumQQ);
+    }
+
+    /**
+     * Compares correlation at given n with threshold without taking square root.
+     */
+    private static boolean reaches(double threshold, double n, double sumPQ, double a, double b, double c, double sumPP, double sumQQ) {
+        double denominator = (n * sumPP - b) * (n * sumQQ - c);
+        if (!(denominator > 0)) {
+            return true;
+        }
+        double numerator = n * sumPQ - a;
+        double limit = threshold * threshold * denominator;
+        if (threshold > 0) {
+            return numerator > 0 && numerator * numerator >= limit;
+        }
+        return numerator >= 0 || numerator * numerator <= limit;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public boolean isFlipped() {
+        return flipped;
+    }
+
+    public double getSum(int k) {
+        return sums[k];
+    }
+
+    public double getSquareSum(int k) {
+        return squareSums[k];
+    }
+
+    public double getNorm(int k) {
+        return Math.sqrt(squareSums[k]);
+    }
+
+    public int getNonZeroCount(int k) {
+        return nonZeroCounts[k];
+    }
+
+    /**
+     * Bin value in the original (unflipped) orientation.
+     */
+    public double getBin(int k, int i, int j) {
+        return bins[k * stride + cell(i, j)];
+    }
+}
@@ -9,10 +9,14 @@ import ru.ifmo.docking.util.CollectionUtils;
 import ru.ifmo.docking.util.IOUtils;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Surface {
     public final String name;
@@ -105,6 +109,50 @@ public class Surface {
         return result;
     }
 
+    /**
+     * SHA-256 of points and normals coordinates. Surfaces read from the same obj file have equal hashes
+     * regardless of their names.
+     */
+    public byte[] contentHash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(6 * Double.BYTES);
+        for (int i = 0; i < points.size(); i++) {
+            Point point = points.get(i);
+            Vector normal = normals.get(i);
+            buffer.clear();
+            buffer.putDouble(point.x).putDouble(point.y).putDouble(point.z);
+            buffer.putDouble(normal.x).putDouble(normal.y).putDouble(normal.z);
+            digest.update(buffer.array());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Indices of vertices whose point or normal differ from vertices of other surface with
+     * the same indices. Surfaces should have equal vertices count.
+     */
+    public int[] changedPoints(Surface other) {
+        if (other.points.size() != points.size()) {
+            throw new IllegalArgumentException("Surfaces have different vertices count");
+        }
+        return IntStream.range(0, points.size())
+                .filter(i -> {
+                    Point point = points.get(i);
+                    Point otherPoint = other.points.get(i);
+                    Vector normal = normals.get(i);
+                    Vector otherNormal = other.normals.get(i);
+                    return point.x != otherPoint.x || point.y != otherPoint.y || point.z != otherPoint.z
+                            || normal.x != otherNormal.x || normal.y != otherNormal.y || normal.z != otherNormal.z;
+                })
+                .toArray();
+    }
+
     public double getAverageEdgeLength() {
         double sum = 0.0;
         for (Face face : faces) {
@@ -0,0 +1,180 @@
+package ru.ifmo.docking.util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded min-heap keeping {@code capacity} entries with the highest scores.
+ * <p>
+ * Entries are long keys with double scores stored in parallel arrays. Heaps of parallel
+ * partitions may share a bound: every full heap publishes its minimal score, and
+ * since the global top contains at least that many entries not worse than it,
+ * all heaps reject entries below the maximal published value.
+ */
+public class TopK {
+    private final int capacity;
+    private final long[] keys;
+    private final double[] scores;
+    private final AtomicLong sharedBound;
+    private int size;
+    private int rejected;
+    private double globalBound = Double.NEGATIVE_INFINITY;
+
+    public TopK(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param sharedBound holder of {@link Double#doubleToLongBits} of the shared bound, may be null
+     */
+    public TopK(int capacity, AtomicLong sharedBound) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative top capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        this.keys = new long[capacity];
+        this.scores = new double[capacity];
+        this.sharedBound = sharedBound;
+        if (sharedBound != null) {
+            globalBound = Double.longBitsToDouble(sharedBound.get());
+        }
+    }
+
+    public static AtomicLong newSharedBound() {
+        return new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+    }
+
+    public static long pack(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    public static int first(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int second(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Scores not greater than threshold can't enter this heap. Heap of zero capacity accepts
+     * nothing, its threshold is positive infinity.
+     */
+    public double threshold() {
+        if (size < capacity) {
+            return globalBound;
+        }
+        return capacity == 0 ? Double.POSITIVE_INFINITY : Math.max(scores[0], globalBound);
+    }
+
+    public boolean offer(long key, double score) {
+        // also rejects NaN
+        if (!(score > threshold())) {
+            if (sharedBound != null && (++rejected & 1023) == 0) {
+                globalBound = Double.longBitsToDouble(sharedBound.get());
+            }
+            return false;
+        }
+
+        if (size < capacity) {
+            keys[size] = key;
+            scores[size] = score;
+            siftUp(size++);
+        } else {
+            keys[0] = key;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+
+        if (size == capacity) {
+            publish(scores[0]);
+        } else if (sharedBound != null) {
+            globalBound = Double.longBitsToDouble(sharedBound.get());
+        }
+        return true;
+    }
+
+    private void publish(double bound) {
+        if (sharedBound == null) {
+            globalBound = Math.max(globalBound, bound);
+            return;
+        }
+        long current = sharedBound.get();
+        while (Double.longBitsToDouble(current) < bound && !sharedBound.compareAndSet(current, Double.doubleToLongBits(bound))) {
+            current = sharedBound.get();
+        }
+        globalBound = Math.max(bound, Double.longBitsToDouble(sharedBound.get()));
+    }
+
+    /**
+     * Merges entries of given heaps into one heap of given capacity.
+     */
+    public static TopK merge(List<TopK> parts, int capacity) {
+        TopK result = new TopK(capacity);
+        for (TopK part : parts) {
+            for (int position = 0; position < part.size; position++) {
+                result.offer(part.keys[position], part.scores[position]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sorts entries by descending score in place. Heap can't accept new entries after that.
+     */
+    public void sortDescending() {
+        for (int last = size - 1; last > 0; last--) {
+            swap(0, last);
+            siftDown(0, last);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getKey(int position) {
+        return keys[position];
+    }
+
+    public double getScore(int position) {
+        return scores[position];
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (scores[parent] <= scores[position]) {
+                return;
+            }
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position, int heapSize) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) {
+                return;
+            }
+            if (child + 1 < heapSize && scores[child + 1] < scores[child]) {
+                child += 1;
+            }
+            if (scores[position] <= scores[child]) {
+                return;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}